@@ -22,6 +22,90 @@ extern "C" {
 /// @return  The EVMJIT instance.
 EXPORT struct evm_instance* evmjit_create(void);
 
+/// Queue the code for compilation in the background.
+///
+/// The code is copied, the caller may release it once the function returns.
+/// Concurrent requests for the same code share a single compilation, and an
+/// execution of code which is still queued compiles it right away.
+///
+/// @param instance   The EVMJIT instance.
+/// @param host       The host callbacks the code will execute with.
+/// @param rev        The EVM revision to compile the code for.
+/// @param flags      The message flags the code will execute with. The same
+///                   compiled code serves static and non-static calls.
+/// @param code_hash  The hash identifying the code.
+/// @param code       The code.
+/// @param code_size  The size of the code.
+/// @return           1 if the code is compiled or queued, 0 if the queue is full.
+EXPORT int evmjit_compile(struct evm_instance* instance,
+                          const struct evm_context_fn_table* host,
+                          enum evm_revision rev,
+                          uint32_t flags,
+                          const struct evm_hash* code_hash,
+                          const uint8_t* code,
+                          size_t code_size);
+
+/// Get the number of compilations queued or running.
+///
+/// @param instance  The EVMJIT instance.
+/// @return          The number of pending compilations.
+EXPORT size_t evmjit_pending_compilations(struct evm_instance* instance);
+
+/// Pin or unpin the compiled code with the given hash.
+///
+/// Pinned code is never evicted from the compiled code cache, whatever the
+/// revision and flags it was compiled for.
+///
+/// @param instance   The EVMJIT instance.
+/// @param code_hash  The hash identifying the code.
+/// @param pinned     Nonzero to pin the code, zero to unpin it.
+EXPORT void evmjit_pin(struct evm_instance* instance, const struct evm_hash* code_hash, int pinned);
+
+/// Check whether compiled code is mapped for the code with the given hash.
+///
+/// @param instance   The EVMJIT instance.
+/// @param rev        The EVM revision the code is executed with.
+/// @param code_hash  The hash identifying the code.
+/// @return           Nonzero if the code executes compiled, zero otherwise.
+EXPORT int evmjit_is_compiled(struct evm_instance* instance, enum evm_revision rev,
+                              const struct evm_hash* code_hash);
+
+/// Get the total size of the compiled code held in memory.
+///
+/// @param instance  The EVMJIT instance.
+/// @return          The size in bytes.
+EXPORT size_t evmjit_code_size(struct evm_instance* instance);
+
+/// Queue the code of a saved profile for compilation in the background.
+///
+/// The profile is saved periodically once the "profile" option names its
+/// file. It holds the most executed code together with its hits and compile
+/// time, so the busiest contracts can be compiled again at startup even
+/// without the object cache.
+///
+/// @param instance      The EVMJIT instance.
+/// @param profile_path  The file of the profile.
+/// @return              The number of contracts queued.
+EXPORT size_t evmjit_precompile(struct evm_instance* instance, char const* profile_path);
+
+/// Load the compiled code stored in the object cache.
+///
+/// Meant to run at startup, before the first execution, so that hot code is
+/// read from the cache rather than compiled again.
+///
+/// @param instance  The EVMJIT instance.
+/// @param threads   The number of threads loading the objects.
+/// @return          The number of objects loaded.
+EXPORT size_t evmjit_preload(struct evm_instance* instance, size_t threads);
+
+/// Get the value of a numeric option set with set_option().
+///
+/// @param instance  The EVMJIT instance.
+/// @param name      The name of the option, e.g. "interpret-threshold".
+/// @param o_value   The pointer to the value.
+/// @return          Nonzero if the option is known and numeric, zero otherwise.
+EXPORT int evmjit_get_option(struct evm_instance* instance, char const* name, uint64_t* o_value);
+
 #if __cplusplus
 }
 #endif
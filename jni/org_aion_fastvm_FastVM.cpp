@@ -1,6 +1,10 @@
 #include <cstdlib>
 #include <cstring>
 #include <algorithm>
+#include <atomic>
+#include <new>
+#include <unordered_map>
+#include <vector>
 
 #include "org_aion_fastvm_FastVM.h"
 #include "evmjit.h"
@@ -13,40 +17,236 @@ void keccak(uint8_t const *_data, uint64_t _size, uint8_t *o_hash);
 }
 }
 
-// cb_env is updated every JNI call, as it's thread-specific
-JNIEnv *cb_env;
-
 // global references
 jclass cb_cls;
 jmethodID cb_get_block_hash;
-jmethodID cb_get_code;
-jmethodID cb_get_balance;
-jmethodID cb_exists;
-jmethodID cb_get_storage;
-jmethodID cb_put_storage;
+jmethodID cb_get_code_handle;
+jmethodID cb_get_code_size_in_scratch;
+jmethodID cb_get_balance_in_scratch;
+jmethodID cb_exists_in_scratch;
+jmethodID cb_get_storage_in_scratch;
+jmethodID cb_put_storage_in_scratch;
+jmethodID cb_scratch;
 jmethodID cb_selfdestruct;
 jmethodID cb_log;
 jmethodID cb_call;
+jmethodID cb_pop;
 
-// do you need a stack for recursive call?
-struct evm_tx_context ctx;
+/**
+ * The host execution context. A new one lives on the stack of every native run
+ * call, so that callbacks always see the JNI environment of the calling thread
+ * and the transaction context of their own execution.
+ */
+struct jni_context {
+    struct evm_context base;
+    JNIEnv *env;
+    struct evm_tx_context tx_context;
+};
 
-/* forward declaration */
-jbyteArray encode_message(JNIEnv *env, const struct evm_message *msg);
-jbyteArray encode_message(JNIEnv *env, const struct evm_message *msg);
-jbyteArray encode_result(JNIEnv *env, const struct evm_result *result);
-void parse_result(struct evm_result *result, jbyte *p);
+/**
+ * Returns the JNI environment of the execution which issued the callback
+ */
+inline JNIEnv *env_of(struct evm_context *context)
+{
+    return reinterpret_cast<struct jni_context *>(context)->env;
+}
+
+/**
+ * The callback scratch buffer of the thread, a direct buffer owned by Java
+ * for the lifetime of the thread. The frequent callbacks pass their arguments
+ * and results through it instead of allocating byte arrays.
+ */
+thread_local uint8_t *scratch = NULL;
+thread_local size_t scratch_size = 0;
+
+/**
+ * Returns the callback scratch buffer of the thread
+ */
+uint8_t *scratch_of(JNIEnv *env)
+{
+    if (!scratch) {
+        jobject buf = env->CallStaticObjectMethod(cb_cls, cb_scratch);
+        scratch = (uint8_t *)env->GetDirectBufferAddress(buf);
+        scratch_size = (size_t)env->GetDirectBufferCapacity(buf);
+        env->DeleteLocalRef(buf);
+    }
+    return scratch;
+}
+
+/**
+ * Contract code registered by Java. The code is copied off-heap and hashed
+ * once; the entry is freed when its last reference is released.
+ */
+struct code_entry {
+    std::atomic<int> refs;
+    struct evm_hash hash;
+    size_t size;
+
+    uint8_t *bytes() { return reinterpret_cast<uint8_t *>(this + 1); }
+    const uint8_t *bytes() const { return reinterpret_cast<const uint8_t *>(this + 1); }
+};
+
+/**
+ * Drops a reference to the code entry
+ */
+void release_code(struct code_entry *entry)
+{
+    if (entry && entry->refs.fetch_sub(1) == 1) {
+        entry->~code_entry();
+        free(entry);
+    }
+}
+
+/**
+ * A storage slot of an account
+ */
+struct storage_key {
+    struct evm_address address;
+    struct evm_word key;
+
+    bool operator==(const storage_key &other) const
+    {
+        return memcmp(this, &other, sizeof(storage_key)) == 0;
+    }
+};
+
+struct storage_key_hash {
+    size_t operator()(const storage_key &slot) const
+    {
+        uint64_t a, k1, k2;
+        memcpy(&a, slot.address.bytes, sizeof(a));
+        memcpy(&k1, slot.key.bytes, sizeof(k1));
+        memcpy(&k2, slot.key.bytes + sizeof(k1), sizeof(k2));
+        return (size_t)((a * 0x9e3779b97f4a7c15ULL) ^ (k1 * 0xc2b2ae3d27d4eb4fULL) ^ k2);
+    }
+};
+
+/**
+ * The storage read and written by the executions of a thread, so that repeated
+ * SLOADs do not call back into Java. It lives from the outermost execution until
+ * it returns and is shared by the nested calls, mirroring the storage as Java
+ * sees it: writes are journaled and undone when a nested call fails, just like
+ * Java rolls back the repository of the call.
+ *
+ * The writes are buffered in the cache too, and passed to Java in one call once
+ * the execution which made them succeeds.
+ */
+struct storage_cache {
+    struct journal_entry {
+        struct storage_key slot;
+        bool cached;
+        struct evm_word value;
+        int depth;
+    };
+
+    struct cached_word {
+        struct evm_word value;
+        uint64_t flush;
+    };
+
+    std::unordered_map<storage_key, cached_word, storage_key_hash> values;
+    std::vector<journal_entry> journal;
+    int depth = 0;
+    uint64_t flushes = 0;
+};
+
+thread_local struct storage_cache storage;
+
+/**
+ * Maximum number of values read into the storage cache
+ */
+const size_t STORAGE_CACHE_LIMIT = 4096;
+
+/**
+ * Undoes the writes journaled since the given journal size
+ */
+void revert_storage(size_t checkpoint)
+{
+    while (storage.journal.size() > checkpoint) {
+        struct storage_cache::journal_entry &entry = storage.journal.back();
+        if (entry.cached) {
+            storage.values[entry.slot].value = entry.value;
+        } else {
+            storage.values.erase(entry.slot);
+        }
+        storage.journal.pop_back();
+    }
+}
+
+/**
+ * The account state read by the executions of a thread, so that BALANCE,
+ * EXTCODESIZE and the like do not call back into Java for the accounts already
+ * seen. Any nested call may change the balance, existence and code of arbitrary
+ * accounts, through value transfers, creations, self-destructs and precompiled
+ * contracts, and have them rolled back, so the cache is dropped before a
+ * nested call starts and again when it returns, and the accounts are read
+ * again.
+ */
+struct account_entry {
+    bool has_exists;
+    bool exists;
+    bool has_balance;
+    struct evm_word balance;
+    bool has_code_size;
+    size_t code_size;
+    struct code_entry *code;
+};
+
+struct account_hash {
+    size_t operator()(const evm_address &address) const
+    {
+        uint64_t a1, a2;
+        memcpy(&a1, address.bytes, sizeof(a1));
+        memcpy(&a2, address.bytes + sizeof(address.bytes) - sizeof(a2), sizeof(a2));
+        return (size_t)((a1 * 0x9e3779b97f4a7c15ULL) ^ a2);
+    }
+};
+
+struct account_equal {
+    bool operator()(const evm_address &a, const evm_address &b) const
+    {
+        return memcmp(a.bytes, b.bytes, sizeof(a.bytes)) == 0;
+    }
+};
+
+thread_local std::unordered_map<evm_address, account_entry, account_hash, account_equal> accounts;
 
 /**
- * allocate and copy memory of the given length
+ * Maximum number of accounts in the account cache
  */
-uint8_t *alloc_and_copy(jbyte *b, uint32_t size)
+const size_t ACCOUNT_CACHE_LIMIT = 1024;
+
+/**
+ * Returns the cache entry of the account, or NULL if the cache is full
+ */
+struct account_entry *find_account(const struct evm_address *address)
 {
-    uint8_t *buf = (uint8_t *)malloc(size);
-    memcpy(buf, b, size);
-    return buf;
+    auto it = accounts.find(*address);
+    if (it != accounts.end()) {
+        return &it->second;
+    }
+    if (accounts.size() >= ACCOUNT_CACHE_LIMIT) {
+        return NULL;
+    }
+    return &accounts.emplace(*address, account_entry{ false, false, false, {}, false, 0, NULL }).first->second;
 }
 
+/**
+ * Drops the account cache, releasing the code it references
+ */
+void clear_accounts()
+{
+    for (auto &it : accounts) {
+        release_code(it.second.code);
+    }
+    accounts.clear();
+}
+
+/* forward declaration */
+jbyteArray encode_message(JNIEnv *env, const struct evm_message *msg);
+jbyteArray encode_result(JNIEnv *env, const struct evm_result *result);
+void parse_result(JNIEnv *env, struct evm_result *result, jbyteArray r);
+
 /**
  * free result
  */
@@ -61,12 +261,19 @@ void release_result(const struct evm_result *result)
 int account_exists(struct evm_context* context,
                    const struct evm_address* address)
 {
-    jbyteArray addr = cb_env->NewByteArray(sizeof(evm_address));
-    cb_env->SetByteArrayRegion(addr, 0, sizeof(evm_address), (const jbyte *)address->bytes);
+    struct account_entry *entry = find_account(address);
+    if (entry && entry->has_exists) {
+        return entry->exists;
+    }
 
-    jboolean exists = cb_env->CallStaticBooleanMethod(cb_cls, cb_exists, addr);
+    JNIEnv *env = env_of(context);
+    memcpy(scratch_of(env), address->bytes, sizeof(evm_address));
 
-    cb_env->DeleteLocalRef(addr);
+    jboolean exists = env->CallStaticBooleanMethod(cb_cls, cb_exists_in_scratch);
+    if (entry) {
+        entry->has_exists = true;
+        entry->exists = exists;
+    }
     return exists;
 }
 
@@ -77,17 +284,23 @@ void get_balance(struct evm_word* result,
                  struct evm_context* context,
                  const struct evm_address* address)
 {
-    jbyteArray addr = cb_env->NewByteArray(sizeof(evm_address));
-    cb_env->SetByteArrayRegion(addr, 0, sizeof(evm_address), (const jbyte *)address->bytes);
+    struct account_entry *entry = find_account(address);
+    if (entry && entry->has_balance) {
+        *result = entry->balance;
+        return;
+    }
 
-    jbyteArray balance = (jbyteArray)cb_env->CallStaticObjectMethod(cb_cls, cb_get_balance, addr);
+    JNIEnv *env = env_of(context);
+    uint8_t *buf = scratch_of(env);
+    memcpy(buf, address->bytes, sizeof(evm_address));
 
-    jbyte *balance_ptr = cb_env->GetByteArrayElements(balance, NULL);
-    memcpy(result->bytes, balance_ptr, sizeof(evm_word));
-    cb_env->ReleaseByteArrayElements(balance, balance_ptr, JNI_ABORT);
+    env->CallStaticVoidMethod(cb_cls, cb_get_balance_in_scratch);
 
-    cb_env->DeleteLocalRef(balance);
-    cb_env->DeleteLocalRef(addr);
+    memcpy(result->bytes, buf, sizeof(evm_word));
+    if (entry) {
+        entry->has_balance = true;
+        entry->balance = *result;
+    }
 }
 
 
@@ -98,30 +311,63 @@ size_t get_code(const uint8_t** result_code,
                 struct evm_context* context,
                 const struct evm_address* address)
 {
-    jbyteArray addr = cb_env->NewByteArray(sizeof(evm_address));
-    cb_env->SetByteArrayRegion(addr, 0, sizeof(evm_address), (const jbyte *)address->bytes);
-
-    // code_buf are consumed immediately and only used for once.
-    static uint8_t *code_buf = nullptr;
-    if (code_buf) {
-        free(code_buf);
-        code_buf = nullptr;
+    // the code is consumed immediately, the entry is kept alive by the account
+    // cache, or until the next call if the cache is full.
+    static thread_local struct code_entry *code_ref = nullptr;
+    release_code(code_ref);
+    code_ref = nullptr;
+
+    struct account_entry *entry = find_account(address);
+    struct code_entry *code = entry ? entry->code : NULL;
+
+    // the size alone is asked without registering the code
+    if (!result_code && !code) {
+        if (entry && entry->has_code_size) {
+            return entry->code_size;
+        }
+
+        JNIEnv *env = env_of(context);
+        memcpy(scratch_of(env), address->bytes, sizeof(evm_address));
+
+        size_t size = (size_t)env->CallStaticIntMethod(cb_cls, cb_get_code_size_in_scratch);
+        if (env->ExceptionCheck()) {
+            return 0;
+        }
+        if (entry) {
+            entry->has_code_size = true;
+            entry->code_size = size;
+        }
+        return size;
     }
 
-    jbyteArray code = (jbyteArray)cb_env->CallStaticObjectMethod(cb_cls, cb_get_code, addr);
-    jsize code_size = cb_env->GetArrayLength(code);
+    if (!code) {
+        JNIEnv *env = env_of(context);
+        jbyteArray addr = env->NewByteArray(sizeof(evm_address));
+        env->SetByteArrayRegion(addr, 0, sizeof(evm_address), (const jbyte *)address->bytes);
+
+        code = (struct code_entry *)env->CallStaticLongMethod(cb_cls, cb_get_code_handle, addr);
+        env->DeleteLocalRef(addr);
+
+        // a failed callback is treated as missing code, the exception is left
+        // pending for the Java caller of the execution
+        if (env->ExceptionCheck() || !code) {
+            if (result_code) {
+                *result_code = NULL;
+            }
+            return 0;
+        }
+
+        if (entry) {
+            entry->code = code;
+        } else {
+            code_ref = code;
+        }
+    }
 
     if (result_code) {
-        jbyte *code_ptr = cb_env->GetByteArrayElements(code, NULL);
-        code_buf = alloc_and_copy(code_ptr, code_size);
-        cb_env->ReleaseByteArrayElements(code, code_ptr, JNI_ABORT);
-
-        *result_code = code_buf;
+        *result_code = code->bytes();
     }
-
-    cb_env->DeleteLocalRef(code);
-    cb_env->DeleteLocalRef(addr);
-    return code_size;
+    return code->size;
 }
 
 /**
@@ -132,19 +378,24 @@ void get_storage(struct evm_word* result,
                  const struct evm_address* address,
                  const struct evm_word* key)
 {
-    jbyteArray addr = cb_env->NewByteArray(sizeof(evm_address));
-    cb_env->SetByteArrayRegion(addr, 0, sizeof(evm_address), (const jbyte *)address->bytes);
-    jbyteArray k = cb_env->NewByteArray(sizeof(evm_word));
-    cb_env->SetByteArrayRegion(k, 0, sizeof(evm_word), (const jbyte *)key->bytes);
-    jbyteArray v = (jbyteArray)cb_env->CallStaticObjectMethod(cb_cls, cb_get_storage, addr, k);
+    struct storage_key slot = { *address, *key };
+    auto it = storage.values.find(slot);
+    if (it != storage.values.end()) {
+        *result = it->second.value;
+        return;
+    }
 
-    jbyte *v_ptr = cb_env->GetByteArrayElements(v, NULL);
-    memcpy(result->bytes, v_ptr, sizeof(evm_word));
-    cb_env->ReleaseByteArrayElements(v, v_ptr, JNI_ABORT);
+    JNIEnv *env = env_of(context);
+    uint8_t *buf = scratch_of(env);
+    memcpy(buf, address->bytes, sizeof(evm_address));
+    memcpy(buf + sizeof(evm_address), key->bytes, sizeof(evm_word));
 
-    cb_env->DeleteLocalRef(addr);
-    cb_env->DeleteLocalRef(k);
-    cb_env->DeleteLocalRef(v);
+    env->CallStaticVoidMethod(cb_cls, cb_get_storage_in_scratch);
+
+    memcpy(result->bytes, buf, sizeof(evm_word));
+    if (storage.values.size() < STORAGE_CACHE_LIMIT) {
+        storage.values.emplace(slot, storage_cache::cached_word{ *result, 0 });
+    }
 }
 
 /**
@@ -155,18 +406,56 @@ void set_storage(struct evm_context* context,
                  const struct evm_word* key,
                  const struct evm_word* value)
 {
-    jbyteArray addr = cb_env->NewByteArray(sizeof(evm_address));
-    cb_env->SetByteArrayRegion(addr, 0, sizeof(evm_address), (const jbyte *)address->bytes);
-    jbyteArray k = cb_env->NewByteArray(sizeof(evm_word));
-    cb_env->SetByteArrayRegion(k, 0, sizeof(evm_word), (const jbyte *)key->bytes);
-    jbyteArray v = cb_env->NewByteArray(sizeof(evm_word));
-    cb_env->SetByteArrayRegion(v, 0, sizeof(evm_word), (const jbyte *)value->bytes);
-
-    cb_env->CallStaticVoidMethod(cb_cls, cb_put_storage, addr, k, v);
+    // journal the cached value, the write is flushed when the execution returns
+    struct storage_key slot = { *address, *key };
+    auto it = storage.values.find(slot);
+    if (it != storage.values.end()) {
+        storage.journal.push_back({ slot, true, it->second.value, storage.depth });
+        it->second.value = *value;
+    } else {
+        storage.journal.push_back({ slot, false, {}, storage.depth });
+        storage.values.emplace(slot, storage_cache::cached_word{ *value, 0 });
+    }
+}
 
-    cb_env->DeleteLocalRef(addr);
-    cb_env->DeleteLocalRef(k);
-    cb_env->DeleteLocalRef(v);
+/**
+ * Passes the writes of the current execution, journaled since the given journal
+ * size, to Java. Each slot is passed once with its latest value; the writes of
+ * the nested calls were already passed when they returned. The rows are written
+ * into the scratch buffer and passed whenever it is full.
+ */
+void flush_storage(JNIEnv *env, size_t checkpoint)
+{
+    const size_t row_size = sizeof(evm_address) + 2 * sizeof(evm_word);
+
+    uint8_t *buf = scratch_of(env);
+    size_t capacity = scratch_size / row_size;
+    size_t rows = 0;
+
+    uint64_t flush = ++storage.flushes;
+    for (size_t i = checkpoint; i < storage.journal.size(); i++) {
+        struct storage_cache::journal_entry &entry = storage.journal[i];
+        if (entry.depth != storage.depth) {
+            continue;
+        }
+        struct storage_cache::cached_word &word = storage.values[entry.slot];
+        if (word.flush == flush) {
+            continue;
+        }
+        word.flush = flush;
+
+        uint8_t *row = buf + rows * row_size;
+        memcpy(row, entry.slot.address.bytes, sizeof(evm_address));
+        memcpy(row + sizeof(evm_address), entry.slot.key.bytes, sizeof(evm_word));
+        memcpy(row + sizeof(evm_address) + sizeof(evm_word), word.value.bytes, sizeof(evm_word));
+        if (++rows == capacity) {
+            env->CallStaticVoidMethod(cb_cls, cb_put_storage_in_scratch, (jint)rows);
+            rows = 0;
+        }
+    }
+    if (rows > 0) {
+        env->CallStaticVoidMethod(cb_cls, cb_put_storage_in_scratch, (jint)rows);
+    }
 }
 
 /**
@@ -175,7 +464,7 @@ void set_storage(struct evm_context* context,
 void get_tx_context(struct evm_tx_context* result,
                     struct evm_context* context)
 {
-    memcpy(result, &ctx, sizeof(evm_tx_context));
+    memcpy(result, &reinterpret_cast<struct jni_context *>(context)->tx_context, sizeof(evm_tx_context));
 }
 
 /**
@@ -185,13 +474,14 @@ void get_block_hash(struct evm_hash* result,
                     struct evm_context* context,
                     int64_t number)
 {
-    jbyteArray block_hash = (jbyteArray)cb_env->CallStaticObjectMethod(cb_cls, cb_get_block_hash, number);
+    JNIEnv *env = env_of(context);
+    jbyteArray block_hash = (jbyteArray)env->CallStaticObjectMethod(cb_cls, cb_get_block_hash, number);
 
-    jbyte *block_hash_ptr = cb_env->GetByteArrayElements(block_hash, NULL);
+    jbyte *block_hash_ptr = env->GetByteArrayElements(block_hash, NULL);
     memcpy(result->bytes, block_hash_ptr, sizeof(evm_hash));
-    cb_env->ReleaseByteArrayElements(block_hash, block_hash_ptr, JNI_ABORT);
+    env->ReleaseByteArrayElements(block_hash, block_hash_ptr, JNI_ABORT);
 
-    cb_env->DeleteLocalRef(block_hash);
+    env->DeleteLocalRef(block_hash);
 }
 
 /**
@@ -201,15 +491,27 @@ void selfdestruct(struct evm_context* context,
                   const struct evm_address* address,
                   const struct evm_address* beneficiary)
 {
-    jbyteArray addr = cb_env->NewByteArray(sizeof(evm_address));
-    cb_env->SetByteArrayRegion(addr, 0, sizeof(evm_address), (const jbyte *)address->bytes);
-    jbyteArray bene = cb_env->NewByteArray(sizeof(evm_address));
-    cb_env->SetByteArrayRegion(bene, 0, sizeof(evm_address), (const jbyte *)beneficiary->bytes);
-
-    cb_env->CallStaticVoidMethod(cb_cls, cb_selfdestruct, addr, bene);
+    JNIEnv *env = env_of(context);
+    jbyteArray addr = env->NewByteArray(sizeof(evm_address));
+    env->SetByteArrayRegion(addr, 0, sizeof(evm_address), (const jbyte *)address->bytes);
+    jbyteArray bene = env->NewByteArray(sizeof(evm_address));
+    env->SetByteArrayRegion(bene, 0, sizeof(evm_address), (const jbyte *)beneficiary->bytes);
+
+    env->CallStaticVoidMethod(cb_cls, cb_selfdestruct, addr, bene);
+
+    // the balance of the owner is moved to the beneficiary
+    struct account_entry *entry = find_account(address);
+    if (entry) {
+        entry->has_balance = false;
+    }
+    entry = find_account(beneficiary);
+    if (entry) {
+        entry->has_balance = false;
+        entry->has_exists = false;
+    }
 
-    cb_env->DeleteLocalRef(addr);
-    cb_env->DeleteLocalRef(bene);
+    env->DeleteLocalRef(addr);
+    env->DeleteLocalRef(bene);
 }
 
 /**
@@ -222,18 +524,19 @@ void log(struct evm_context* context,
          const struct evm_word topics[],
          size_t topics_count)
 {
-    jbyteArray addr = cb_env->NewByteArray(sizeof(evm_address));
-    cb_env->SetByteArrayRegion(addr, 0, sizeof(evm_address), (const jbyte *)address->bytes);
-    jbyteArray t = cb_env->NewByteArray(sizeof(evm_word) * topics_count);
-    cb_env->SetByteArrayRegion(t, 0, sizeof(evm_word) * topics_count, (const jbyte *)topics[0].bytes);
-    jbyteArray d = cb_env->NewByteArray(data_size);
-    cb_env->SetByteArrayRegion(d, 0, data_size, (const jbyte *)data);
-
-    cb_env->CallStaticVoidMethod(cb_cls, cb_log, addr, t, d);
-
-    cb_env->DeleteLocalRef(addr);
-    cb_env->DeleteLocalRef(t);
-    cb_env->DeleteLocalRef(d);
+    JNIEnv *env = env_of(context);
+    jbyteArray addr = env->NewByteArray(sizeof(evm_address));
+    env->SetByteArrayRegion(addr, 0, sizeof(evm_address), (const jbyte *)address->bytes);
+    jbyteArray t = env->NewByteArray(sizeof(evm_word) * topics_count);
+    env->SetByteArrayRegion(t, 0, sizeof(evm_word) * topics_count, (const jbyte *)topics[0].bytes);
+    jbyteArray d = env->NewByteArray(data_size);
+    env->SetByteArrayRegion(d, 0, data_size, (const jbyte *)data);
+
+    env->CallStaticVoidMethod(cb_cls, cb_log, addr, t, d);
+
+    env->DeleteLocalRef(addr);
+    env->DeleteLocalRef(t);
+    env->DeleteLocalRef(d);
 }
 
 /**
@@ -243,15 +546,25 @@ void call(struct evm_result* result,
           struct evm_context* context,
           const struct evm_message* msg)
 {
-    jbyteArray m = encode_message(cb_env, msg);
+    JNIEnv *env = env_of(context);
+    jbyteArray m = encode_message(env, msg);
+    size_t checkpoint = storage.journal.size();
+
+    // Java transfers the value before the nested execution runs on this thread,
+    // which must not read the accounts cached before the transfer
+    clear_accounts();
 
-    jbyteArray r = (jbyteArray)cb_env->CallStaticObjectMethod(cb_cls, cb_call, m);
-    jbyte *r_ptr = cb_env->GetByteArrayElements(r, NULL);
-    parse_result(result, r_ptr);
-    cb_env->ReleaseByteArrayElements(r, r_ptr, JNI_ABORT);
+    jbyteArray r = (jbyteArray)env->CallStaticObjectMethod(cb_cls, cb_call, m);
+    parse_result(env, result, r);
 
-    cb_env->DeleteLocalRef(m);
-    cb_env->DeleteLocalRef(r);
+    // Java rolls back the storage written by a failed call
+    if (result->status_code != EVM_SUCCESS) {
+        revert_storage(checkpoint);
+    }
+    clear_accounts();
+
+    env->DeleteLocalRef(m);
+    env->DeleteLocalRef(r);
 }
 
 /**
@@ -351,15 +664,19 @@ jbyteArray encode_message(JNIEnv *env, const struct evm_message *msg)
 }
 
 /**
- * Parse a result
+ * Parse a result, copying the output straight from the Java array into its own buffer
  */
-void parse_result(struct evm_result *result, jbyte *p)
+void parse_result(JNIEnv *env, struct evm_result *result, jbyteArray r)
 {
+    jbyte header[16];
+    env->GetByteArrayRegion(r, 0, sizeof(header), header);
+
     unsigned offset = 0;
-    result->status_code = static_cast<evm_status_code>(read_int(p + offset)); offset += 4; // code
-    result->gas_left = read_long(p + offset); offset += 8; // gas left
-    result->output_size = read_int(p + offset); offset += 4; // output size
-    uint8_t *buf = alloc_and_copy(p + offset, result->output_size); offset += result->output_size; // output
+    result->status_code = static_cast<evm_status_code>(read_int(header + offset)); offset += 4; // code
+    result->gas_left = read_long(header + offset); offset += 8; // gas left
+    result->output_size = read_int(header + offset); offset += 4; // output size
+    uint8_t *buf = (uint8_t *)malloc(result->output_size);
+    env->GetByteArrayRegion(r, offset, result->output_size, (jbyte *)buf); // output
     result->output_data = buf;
 
     result->release = &release_result;
@@ -367,18 +684,33 @@ void parse_result(struct evm_result *result, jbyte *p)
 }
 
 /**
- * Encodes execution result.
+ * Returns the size of the encoded execution result.
  */
-jbyteArray encode_result(JNIEnv *env, const struct evm_result *result)
+unsigned result_size(const struct evm_result *result)
 {
-    unsigned size = 4 + 8 + 4 + result->output_size;
-    jbyte *buf = (jbyte *)malloc(size);
+    return 4 + 8 + 4 + result->output_size;
+}
 
+/**
+ * Writes the encoded execution result to the byte array
+ */
+void write_result(jbyte *buf, const struct evm_result *result)
+{
     unsigned offset = 0;
     write_int(buf + offset, result->status_code); offset += 4; // code
     write_long(buf + offset, result->gas_left); offset += 8; // gas left
     write_int(buf + offset, result->output_size); offset += 4; // output size
     memcpy(buf + offset, result->output_data, result->output_size); offset += result->output_size; // output
+}
+
+/**
+ * Encodes execution result.
+ */
+jbyteArray encode_result(JNIEnv *env, const struct evm_result *result)
+{
+    unsigned size = result_size(result);
+    jbyte *buf = (jbyte *)malloc(size);
+    write_result(buf, result);
 
     jbyteArray ret = env->NewByteArray(size);
     env->SetByteArrayRegion(ret, 0, size, buf);
@@ -387,6 +719,19 @@ jbyteArray encode_result(JNIEnv *env, const struct evm_result *result)
     return ret;
 }
 
+/**
+ * Writes the execution result into the direct buffer if it fits, otherwise
+ * returns it encoded in a new byte array.
+ */
+jbyteArray deliver_result(JNIEnv *env, const struct evm_result *result, jobject buffer)
+{
+    if (result_size(result) <= env->GetDirectBufferCapacity(buffer)) {
+        write_result((jbyte *)env->GetDirectBufferAddress(buffer), result);
+        return NULL;
+    }
+    return encode_result(env, result);
+}
+
 static const struct evm_context_fn_table ctx_fn_table = {
     account_exists,
     get_storage,
@@ -400,25 +745,24 @@ static const struct evm_context_fn_table ctx_fn_table = {
     log
 };
 
-struct evm_context vm_context = { &ctx_fn_table };
-
 JNIEXPORT void JNICALL Java_org_aion_fastvm_FastVM_init
   (JNIEnv *env, jclass cls)
 {
-    cb_env = env;
-
     jclass cb_cls_local = env->FindClass("org/aion/fastvm/Callback");
     cb_cls = (jclass) env->NewGlobalRef(cb_cls_local);
 
     cb_get_block_hash = env->GetStaticMethodID(cb_cls, "getBlockHash", "(J)[B");
-    cb_get_code = env->GetStaticMethodID(cb_cls, "getCode", "([B)[B");
-    cb_get_balance = env->GetStaticMethodID(cb_cls, "getBalance", "([B)[B");
-    cb_exists = env->GetStaticMethodID(cb_cls, "exists", "([B)Z");
-    cb_get_storage = env->GetStaticMethodID(cb_cls, "getStorage", "([B[B)[B");
-    cb_put_storage = env->GetStaticMethodID(cb_cls, "putStorage", "([B[B[B)V");
+    cb_get_code_handle = env->GetStaticMethodID(cb_cls, "getCodeHandle", "([B)J");
+    cb_get_code_size_in_scratch = env->GetStaticMethodID(cb_cls, "getCodeSizeInScratch", "()I");
+    cb_get_balance_in_scratch = env->GetStaticMethodID(cb_cls, "getBalanceInScratch", "()V");
+    cb_exists_in_scratch = env->GetStaticMethodID(cb_cls, "existsInScratch", "()Z");
+    cb_get_storage_in_scratch = env->GetStaticMethodID(cb_cls, "getStorageInScratch", "()V");
+    cb_put_storage_in_scratch = env->GetStaticMethodID(cb_cls, "putStorageInScratch", "(I)V");
+    cb_scratch = env->GetStaticMethodID(cb_cls, "scratch", "()Ljava/nio/ByteBuffer;");
     cb_selfdestruct = env->GetStaticMethodID(cb_cls, "selfDestruct", "([B[B)V");
     cb_log = env->GetStaticMethodID(cb_cls, "log", "([B[B[B)V");
     cb_call = env->GetStaticMethodID(cb_cls, "call", "([B)[B");
+    cb_pop = env->GetStaticMethodID(cb_cls, "pop", "()V");
 
     env->DeleteLocalRef(cb_cls_local);
 }
@@ -426,49 +770,248 @@ JNIEXPORT void JNICALL Java_org_aion_fastvm_FastVM_init
 JNIEXPORT jlong JNICALL Java_org_aion_fastvm_FastVM_create
   (JNIEnv *env, jclass cls)
 {
-    cb_env = env;
-
-    struct evm_instance *instance = evmjit_create();;
+    struct evm_instance *instance = evmjit_create();
     return (jlong)instance;
 }
 
-JNIEXPORT jbyteArray JNICALL Java_org_aion_fastvm_FastVM_run
-  (JNIEnv *env, jclass cls, jlong instance, jbyteArray code, jbyteArray context, jint revision)
+/**
+ * Executes the code with the encoded execution context. The code hash is
+ * computed unless the caller provides it.
+ */
+struct evm_result execute(JNIEnv *env, struct evm_instance *inst, const uint8_t *code, size_t code_size,
+        const struct evm_hash *code_hash, jbyte *context_ptr, jint revision)
 {
-    cb_env = env;
+    // parse execution context and compute code hash
+    struct evm_message msg;
+    struct jni_context ctx = { { &ctx_fn_table }, env };
+    parse_context(env, context_ptr, &msg, &ctx.tx_context);
+    if (code_hash) {
+        msg.code_hash = *code_hash;
+    } else {
+        dev::evmjit::keccak(code, code_size, msg.code_hash.bytes);
+    }
 
+    // execute, the storage written is flushed on success and the storage cache
+    // is dropped once the outermost execution returns
+    size_t checkpoint = storage.journal.size();
+    storage.depth++;
+    struct evm_result result = inst->execute(inst, &ctx.base, static_cast<evm_revision>(revision), &msg, code, code_size);
+    if (result.status_code == EVM_SUCCESS) {
+        flush_storage(env, checkpoint);
+    }
+    if (--storage.depth == 0) {
+        storage.values.clear();
+        storage.journal.clear();
+        clear_accounts();
+    }
+    return result;
+}
+
+JNIEXPORT jbyteArray JNICALL Java_org_aion_fastvm_FastVM_run
+  (JNIEnv *env, jclass cls, jlong instance, jbyteArray code, jbyteArray code_hash, jobject context,
+   jobject result_buffer, jint revision)
+{
     struct evm_instance *inst = (struct evm_instance *)instance;
     jbyte *code_ptr = (jbyte *)env->GetByteArrayElements(code, NULL);
     jsize code_size = env->GetArrayLength(code);
 
-    // parse execution context and compute code hash
-    struct evm_message msg;
-    jbyte *context_ptr = (jbyte *)env->GetByteArrayElements(context, NULL);
-    parse_context(env, context_ptr, &msg, &ctx);
-    dev::evmjit::keccak((const uint8_t*) code_ptr, code_size, msg.code_hash.bytes);
+    struct evm_hash hash;
+    if (code_hash) {
+        env->GetByteArrayRegion(code_hash, 0, sizeof(evm_hash), (jbyte *)hash.bytes);
+    }
 
-    // execute
-    struct evm_result result = inst->execute(inst, &vm_context, static_cast<evm_revision>(revision), &msg,
-            (uint8_t *)code_ptr, code_size);
+    jbyte *context_ptr = (jbyte *)env->GetDirectBufferAddress(context);
+    struct evm_result result = execute(env, inst, (const uint8_t *)code_ptr, code_size,
+            code_hash ? &hash : NULL, context_ptr, revision);
 
-    // encode execution result
-    jbyteArray ret = encode_result(env, &result);
+    // write execution result
+    jbyteArray ret = deliver_result(env, &result, result_buffer);
 
     // release
     if (result.release) {
         result.release(&result);
     }
 
-    env->ReleaseByteArrayElements(context, context_ptr, JNI_ABORT);
-    env->ReleaseByteArrayElements(code, code_ptr, 0 );
+    env->ReleaseByteArrayElements(code, code_ptr, JNI_ABORT);
     return ret;
 }
 
-JNIEXPORT void JNICALL Java_org_aion_fastvm_FastVM_destroy
-  (JNIEnv *env, jclass cls, jlong handler)
+JNIEXPORT jbyteArray JNICALL Java_org_aion_fastvm_FastVM_runCode
+  (JNIEnv *env, jclass cls, jlong instance, jlong code, jobject context, jobject result_buffer,
+   jint revision)
 {
-    cb_env = env;
+    struct evm_instance *inst = (struct evm_instance *)instance;
+    struct code_entry *entry = (struct code_entry *)code;
+
+    jbyte *context_ptr = (jbyte *)env->GetDirectBufferAddress(context);
+    struct evm_result result = execute(env, inst, entry->bytes(), entry->size, &entry->hash,
+            context_ptr, revision);
+
+    // write execution result
+    jbyteArray ret = deliver_result(env, &result, result_buffer);
+
+    // release
+    if (result.release) {
+        result.release(&result);
+    }
+
+    release_code(entry);
+    return ret;
+}
+
+JNIEXPORT jlong JNICALL Java_org_aion_fastvm_FastVM_registerCode
+  (JNIEnv *env, jclass cls, jbyteArray code)
+{
+    jsize code_size = env->GetArrayLength(code);
+
+    void *mem = malloc(sizeof(struct code_entry) + code_size);
+    struct code_entry *entry = new (mem) code_entry();
+    entry->refs = 1;
+    entry->size = code_size;
+    env->GetByteArrayRegion(code, 0, code_size, (jbyte *)entry->bytes());
+    dev::evmjit::keccak(entry->bytes(), code_size, entry->hash.bytes);
+
+    return (jlong)entry;
+}
+
+JNIEXPORT void JNICALL Java_org_aion_fastvm_FastVM_retainCode
+  (JNIEnv *env, jclass cls, jlong code)
+{
+    ((struct code_entry *)code)->refs.fetch_add(1);
+}
+
+JNIEXPORT void JNICALL Java_org_aion_fastvm_FastVM_releaseCode
+  (JNIEnv *env, jclass cls, jlong code)
+{
+    release_code((struct code_entry *)code);
+}
+
+JNIEXPORT jbyteArray JNICALL Java_org_aion_fastvm_FastVM_runBatch
+  (JNIEnv *env, jclass cls, jlong instance, jlongArray codes, jobjectArray contexts, jint revision)
+{
+    struct evm_instance *inst = (struct evm_instance *)instance;
+    jsize count = env->GetArrayLength(codes);
+    std::vector<jlong> handles(count);
+    env->GetLongArrayRegion(codes, 0, count, handles.data());
+    std::vector<jbyte> buf;
+
+    for (jsize i = 0; i < count; i++) {
+        struct code_entry *entry = (struct code_entry *)handles[i];
+        jobject context = env->GetObjectArrayElement(contexts, i);
+
+        jbyte *context_ptr = (jbyte *)env->GetDirectBufferAddress(context);
+        struct evm_result result = execute(env, inst, entry->bytes(), entry->size, &entry->hash,
+                context_ptr, revision);
+
+        // append execution result
+        size_t offset = buf.size();
+        buf.resize(offset + result_size(&result));
+        write_result(buf.data() + offset, &result);
+
+        // release
+        if (result.release) {
+            result.release(&result);
+        }
+        release_code(entry);
+        env->DeleteLocalRef(context);
+
+        // stop at an exception raised by a callback; the Java caller unwinds the callback stack
+        if (env->ExceptionCheck()) {
+            for (jsize j = i + 1; j < count; j++) {
+                release_code((struct code_entry *)handles[j]);
+            }
+            return NULL;
+        }
+
+        // move the callback stack to the next execution
+        env->CallStaticVoidMethod(cb_cls, cb_pop);
+    }
+
+    jbyteArray ret = env->NewByteArray(buf.size());
+    env->SetByteArrayRegion(ret, 0, buf.size(), buf.data());
+    return ret;
+}
+
+JNIEXPORT jboolean JNICALL Java_org_aion_fastvm_FastVM_compile
+  (JNIEnv *env, jclass cls, jlong instance, jlong code, jint revision, jint flags)
+{
+    struct evm_instance *inst = (struct evm_instance *)instance;
+    struct code_entry *entry = (struct code_entry *)code;
+
+    int queued = evmjit_compile(inst, &ctx_fn_table, static_cast<evm_revision>(revision), flags,
+            &entry->hash, entry->bytes(), entry->size);
+
+    release_code(entry);
+    return queued ? JNI_TRUE : JNI_FALSE;
+}
+
+JNIEXPORT jint JNICALL Java_org_aion_fastvm_FastVM_pendingCompilations
+  (JNIEnv *env, jclass cls, jlong instance)
+{
+    return (jint)evmjit_pending_compilations((struct evm_instance *)instance);
+}
+
+JNIEXPORT void JNICALL Java_org_aion_fastvm_FastVM_pin
+  (JNIEnv *env, jclass cls, jlong instance, jlong code, jboolean pinned)
+{
+    struct code_entry *entry = (struct code_entry *)code;
+    evmjit_pin((struct evm_instance *)instance, &entry->hash, pinned == JNI_TRUE);
+    release_code(entry);
+}
+
+JNIEXPORT jboolean JNICALL Java_org_aion_fastvm_FastVM_isCompiled
+  (JNIEnv *env, jclass cls, jlong instance, jlong code, jint revision)
+{
+    struct code_entry *entry = (struct code_entry *)code;
+    int compiled = evmjit_is_compiled((struct evm_instance *)instance,
+            static_cast<evm_revision>(revision), &entry->hash);
+    release_code(entry);
+    return compiled ? JNI_TRUE : JNI_FALSE;
+}
+
+JNIEXPORT jlong JNICALL Java_org_aion_fastvm_FastVM_codeSize
+  (JNIEnv *env, jclass cls, jlong instance)
+{
+    return (jlong)evmjit_code_size((struct evm_instance *)instance);
+}
+
+JNIEXPORT jint JNICALL Java_org_aion_fastvm_FastVM_precompile
+  (JNIEnv *env, jclass cls, jlong instance, jstring profile)
+{
+    const char *path = env->GetStringUTFChars(profile, NULL);
+    jint queued = (jint)evmjit_precompile((struct evm_instance *)instance, path);
+    env->ReleaseStringUTFChars(profile, path);
+    return queued;
+}
+
+JNIEXPORT jint JNICALL Java_org_aion_fastvm_FastVM_preload
+  (JNIEnv *env, jclass cls, jlong instance, jint threads)
+{
+    return (jint)evmjit_preload((struct evm_instance *)instance, (size_t)threads);
+}
+
+JNIEXPORT jboolean JNICALL Java_org_aion_fastvm_FastVM_setOption
+  (JNIEnv *env, jclass cls, jlong instance, jstring name, jstring value)
+{
+    struct evm_instance *inst = (struct evm_instance *)instance;
+    const char *name_ptr = env->GetStringUTFChars(name, NULL);
+    const char *value_ptr = env->GetStringUTFChars(value, NULL);
+
+    int ok = inst->set_option(inst, name_ptr, value_ptr);
+
+    env->ReleaseStringUTFChars(name, name_ptr);
+    env->ReleaseStringUTFChars(value, value_ptr);
+    return ok ? JNI_TRUE : JNI_FALSE;
+}
+
+JNIEXPORT jlong JNICALL Java_org_aion_fastvm_FastVM_getOption
+  (JNIEnv *env, jclass cls, jlong instance, jstring name)
+{
+    const char *name_ptr = env->GetStringUTFChars(name, NULL);
+
+    uint64_t value = 0;
+    int ok = evmjit_get_option((struct evm_instance *)instance, name_ptr, &value);
 
-    struct evm_instance *instance = (struct evm_instance *)handler;
-    instance->destroy(instance);
+    env->ReleaseStringUTFChars(name, name_ptr);
+    return ok ? (jlong)value : -1;
 }
@@ -26,19 +26,123 @@ JNIEXPORT jlong JNICALL Java_org_aion_fastvm_FastVM_create
 /*
  * Class:     org_aion_fastvm_FastVM
  * Method:    run
- * Signature: (J[B[BI)[B
+ * Signature: (J[B[BLjava/nio/ByteBuffer;Ljava/nio/ByteBuffer;I)[B
  */
 JNIEXPORT jbyteArray JNICALL Java_org_aion_fastvm_FastVM_run
-  (JNIEnv *, jclass, jlong, jbyteArray, jbyteArray, jint);
+  (JNIEnv *, jclass, jlong, jbyteArray, jbyteArray, jobject, jobject, jint);
 
 /*
  * Class:     org_aion_fastvm_FastVM
- * Method:    destroy
+ * Method:    runCode
+ * Signature: (JJLjava/nio/ByteBuffer;Ljava/nio/ByteBuffer;I)[B
+ */
+JNIEXPORT jbyteArray JNICALL Java_org_aion_fastvm_FastVM_runCode
+  (JNIEnv *, jclass, jlong, jlong, jobject, jobject, jint);
+
+/*
+ * Class:     org_aion_fastvm_FastVM
+ * Method:    registerCode
+ * Signature: ([B)J
+ */
+JNIEXPORT jlong JNICALL Java_org_aion_fastvm_FastVM_registerCode
+  (JNIEnv *, jclass, jbyteArray);
+
+/*
+ * Class:     org_aion_fastvm_FastVM
+ * Method:    retainCode
+ * Signature: (J)V
+ */
+JNIEXPORT void JNICALL Java_org_aion_fastvm_FastVM_retainCode
+  (JNIEnv *, jclass, jlong);
+
+/*
+ * Class:     org_aion_fastvm_FastVM
+ * Method:    releaseCode
  * Signature: (J)V
  */
-JNIEXPORT void JNICALL Java_org_aion_fastvm_FastVM_destroy
+JNIEXPORT void JNICALL Java_org_aion_fastvm_FastVM_releaseCode
+  (JNIEnv *, jclass, jlong);
+
+/*
+ * Class:     org_aion_fastvm_FastVM
+ * Method:    runBatch
+ * Signature: (J[J[Ljava/nio/ByteBuffer;I)[B
+ */
+JNIEXPORT jbyteArray JNICALL Java_org_aion_fastvm_FastVM_runBatch
+  (JNIEnv *, jclass, jlong, jlongArray, jobjectArray, jint);
+
+/*
+ * Class:     org_aion_fastvm_FastVM
+ * Method:    compile
+ * Signature: (JJII)Z
+ */
+JNIEXPORT jboolean JNICALL Java_org_aion_fastvm_FastVM_compile
+  (JNIEnv *, jclass, jlong, jlong, jint, jint);
+
+/*
+ * Class:     org_aion_fastvm_FastVM
+ * Method:    pendingCompilations
+ * Signature: (J)I
+ */
+JNIEXPORT jint JNICALL Java_org_aion_fastvm_FastVM_pendingCompilations
+  (JNIEnv *, jclass, jlong);
+
+/*
+ * Class:     org_aion_fastvm_FastVM
+ * Method:    pin
+ * Signature: (JJZ)V
+ */
+JNIEXPORT void JNICALL Java_org_aion_fastvm_FastVM_pin
+  (JNIEnv *, jclass, jlong, jlong, jboolean);
+
+/*
+ * Class:     org_aion_fastvm_FastVM
+ * Method:    isCompiled
+ * Signature: (JJI)Z
+ */
+JNIEXPORT jboolean JNICALL Java_org_aion_fastvm_FastVM_isCompiled
+  (JNIEnv *, jclass, jlong, jlong, jint);
+
+/*
+ * Class:     org_aion_fastvm_FastVM
+ * Method:    codeSize
+ * Signature: (J)J
+ */
+JNIEXPORT jlong JNICALL Java_org_aion_fastvm_FastVM_codeSize
   (JNIEnv *, jclass, jlong);
 
+/*
+ * Class:     org_aion_fastvm_FastVM
+ * Method:    precompile
+ * Signature: (JLjava/lang/String;)I
+ */
+JNIEXPORT jint JNICALL Java_org_aion_fastvm_FastVM_precompile
+  (JNIEnv *, jclass, jlong, jstring);
+
+/*
+ * Class:     org_aion_fastvm_FastVM
+ * Method:    preload
+ * Signature: (JI)I
+ */
+JNIEXPORT jint JNICALL Java_org_aion_fastvm_FastVM_preload
+  (JNIEnv *, jclass, jlong, jint);
+
+/*
+ * Class:     org_aion_fastvm_FastVM
+ * Method:    setOption
+ * Signature: (JLjava/lang/String;Ljava/lang/String;)Z
+ */
+JNIEXPORT jboolean JNICALL Java_org_aion_fastvm_FastVM_setOption
+  (JNIEnv *, jclass, jlong, jstring, jstring);
+
+/*
+ * Class:     org_aion_fastvm_FastVM
+ * Method:    getOption
+ * Signature: (JLjava/lang/String;)J
+ */
+JNIEXPORT jlong JNICALL Java_org_aion_fastvm_FastVM_getOption
+  (JNIEnv *, jclass, jlong, jstring);
+
 #ifdef __cplusplus
 }
 #endif
@@ -1,6 +1,11 @@
 #include "Cache.h"
 
+#include <algorithm>
+#include <cstring>
+#include <limits>
 #include <mutex>
+#include <vector>
+#include <utime.h>
 
 #include "preprocessor/llvm_includes_start.h"
 #include <llvm/IR/Module.h>
@@ -25,21 +30,171 @@ namespace
 	/// The ABI version of jitted codes. It reflects how a generated code
 	/// communicates with outside world. When this communication changes old
 	/// cached code must be invalidated.
-	const auto c_internalABIVersion = 4;
+	const auto c_internalABIVersion = 6;
+
+	/// Every cache file starts with this header, followed by the object.
+	struct ObjectHeader
+	{
+		char magic[8];
+		uint64_t abiVersion;
+		uint64_t size;
+		uint64_t checksum;
+	};
+
+	const char c_magic[8] = "EVMJITo";
 
 	using Guard = std::lock_guard<std::mutex>;
 	std::mutex x_cacheMutex;
 	CacheMode g_mode;
 	std::unique_ptr<llvm::MemoryBuffer> g_lastObject;
 	JITListener* g_listener;
+	std::string g_dir = "cache";
+
+	/// The size limit of the cache storage and the size of the stored
+	/// objects, counted once the storage is first written to.
+	uint64_t g_sizeLimit = std::numeric_limits<uint64_t>::max();
+	uint64_t g_size = 0;
+	bool g_sizeKnown = false;
 
 	std::string getVersionedCacheDir()
 	{
 		llvm::SmallString<256> path;
-		llvm::sys::path::append(path, "cache", std::to_string(c_internalABIVersion));
+		llvm::sys::path::append(path, g_dir, std::to_string(c_internalABIVersion));
 		return path.str();
 	}
 
+	/// 64-bit FNV-1a hash of the object.
+	uint64_t checksum(llvm::StringRef _object)
+	{
+		uint64_t hash = 0xcbf29ce484222325;
+		for (auto c: _object)
+		{
+			hash ^= static_cast<uint8_t>(c);
+			hash *= 0x100000001b3;
+		}
+		return hash;
+	}
+
+	/// A cached object, the part of the cache file following the header.
+	/// Large files are mapped into memory rather than read.
+	class ObjectBuffer: public llvm::MemoryBuffer
+	{
+	public:
+		explicit ObjectBuffer(std::unique_ptr<llvm::MemoryBuffer> _file):
+			m_file(std::move(_file))
+		{
+			init(m_file->getBufferStart() + sizeof(ObjectHeader), m_file->getBufferEnd(), false);
+		}
+
+		BufferKind getBufferKind() const override { return m_file->getBufferKind(); }
+
+	private:
+		std::unique_ptr<llvm::MemoryBuffer> m_file;
+	};
+
+	/// Loads the object from the cache file, checking its integrity. Does not
+	/// require x_cacheMutex to be held.
+	std::unique_ptr<llvm::MemoryBuffer> readObject(llvm::StringRef _path, bool& o_corrupted)
+	{
+		auto r = llvm::MemoryBuffer::getFile(_path, -1, false);
+		if (!r)
+		{
+			if (r.getError() != std::make_error_code(std::errc::no_such_file_or_directory))
+				DLOG(cache) << r.getError().message(); // TODO: Add warning log
+			return nullptr;
+		}
+
+		auto buffer = r.get()->getBuffer();
+		ObjectHeader header;
+		if (buffer.size() >= sizeof(header))
+			std::memcpy(&header, buffer.data(), sizeof(header));
+		auto object = buffer.drop_front(std::min(buffer.size(), sizeof(header)));
+		if (buffer.size() < sizeof(header) ||
+			std::memcmp(header.magic, c_magic, sizeof(c_magic)) != 0 ||
+			header.abiVersion != c_internalABIVersion ||
+			header.size != object.size() ||
+			header.checksum != checksum(object))
+		{
+			o_corrupted = true;
+			return nullptr;
+		}
+
+		// The modification time orders the files for eviction.
+		::utime(_path.str().c_str(), nullptr);
+		return llvm::make_unique<ObjectBuffer>(std::move(r.get()));
+	}
+
+	/// Removes a corrupted cache file. Requires x_cacheMutex to be held.
+	void removeObject(llvm::StringRef _path)
+	{
+		DLOG(cache) << _path.str() << ": corrupted, removed\n";
+		uint64_t size = 0;
+		llvm::sys::fs::file_size(_path, size);
+		if (!llvm::sys::fs::remove(_path) && g_sizeKnown)
+			g_size -= std::min(g_size, size);
+	}
+
+	/// Hands a single loaded object to the engine of its module.
+	class LoadedObject: public llvm::ObjectCache
+	{
+	public:
+		explicit LoadedObject(std::unique_ptr<llvm::MemoryBuffer> _object):
+			m_object(std::move(_object))
+		{}
+
+		void notifyObjectCompiled(llvm::Module const*, llvm::MemoryBufferRef) override {}
+
+		std::unique_ptr<llvm::MemoryBuffer> getObject(llvm::Module const*) override
+		{
+			return std::move(m_object);
+		}
+
+	private:
+		std::unique_ptr<llvm::MemoryBuffer> m_object;
+	};
+
+	/// Removes the least recently used objects once the cache storage holds
+	/// more than g_sizeLimit bytes. Requires x_cacheMutex to be held.
+	void evictObjects()
+	{
+		if (g_sizeKnown && g_size <= g_sizeLimit)
+			return;
+
+		struct File
+		{
+			std::string path;
+			uint64_t size;
+			decltype(llvm::sys::fs::file_status{}.getLastModificationTime()) lastUse;
+		};
+		std::vector<File> files;
+		uint64_t size = 0;
+		std::error_code err;
+		for (auto it = llvm::sys::fs::directory_iterator{getVersionedCacheDir(), err}; it != decltype(it){}; it.increment(err))
+		{
+			llvm::sys::fs::file_status status;
+			if (it->status(status) || status.type() != llvm::sys::fs::file_type::regular_file)
+				continue;
+			files.push_back({it->path(), status.getSize(), status.getLastModificationTime()});
+			size += status.getSize();
+		}
+		g_size = size;
+		g_sizeKnown = true;
+		if (g_size <= g_sizeLimit)
+			return;
+
+		// Evict down to 3/4 of the limit so that not every write to a full
+		// cache has to list the storage.
+		auto const targetSize = g_sizeLimit / 4 * 3;
+		std::sort(files.begin(), files.end(), [](File const& _a, File const& _b) { return _a.lastUse < _b.lastUse; });
+		for (auto& file: files)
+		{
+			if (g_size <= targetSize)
+				break;
+			if (!llvm::sys::fs::remove(file.path))
+				g_size -= file.size;
+		}
+		DLOG(cache) << "Evicted objects, " << g_size << " bytes left\n";
+	}
 }
 
 ObjectCache* Cache::init(CacheMode _mode, JITListener* _listener)
@@ -57,12 +212,29 @@ ObjectCache* Cache::init(CacheMode _mode, JITListener* _listener)
 		g_mode = CacheMode::off;
 	}
 
-	if (g_mode != CacheMode::off)
-	{
-		static ObjectCache objectCache;
-		return &objectCache;
-	}
-	return nullptr;
+	// The cache can be enabled later, see setMode().
+	static ObjectCache objectCache;
+	return &objectCache;
+}
+
+void Cache::setMode(CacheMode _mode)
+{
+	Guard g{x_cacheMutex};
+	g_mode = _mode;
+}
+
+void Cache::setDirectory(std::string const& _dir)
+{
+	Guard g{x_cacheMutex};
+	g_dir = _dir;
+	g_sizeKnown = false;
+}
+
+void Cache::setSizeLimit(uint64_t _limit)
+{
+	Guard g{x_cacheMutex};
+	g_sizeLimit = _limit;
+	evictObjects();
 }
 
 void Cache::clear()
@@ -73,33 +245,59 @@ void Cache::clear()
 	std::error_code err;
 	for (auto it = llvm::sys::fs::directory_iterator{cachePath, err}; it != decltype(it){}; it.increment(err))
 		llvm::sys::fs::remove(it->path());
+	g_sizeKnown = false;
 }
 
-void Cache::preload(llvm::ExecutionEngine& _ee, std::unordered_map<std::string, uint64_t>& _funcCache,
-                    llvm::LLVMContext& _llvmContext)
+std::vector<std::string> Cache::listObjects()
 {
 	Guard g{x_cacheMutex};
 
-	// Disable listener
-	auto listener = g_listener;
-	g_listener = nullptr;
+	std::vector<std::string> ids;
+	if (g_mode != CacheMode::on && g_mode != CacheMode::read)
+		return ids;
 
-	auto cachePath = getVersionedCacheDir();
 	std::error_code err;
-	for (auto it = llvm::sys::fs::directory_iterator{cachePath, err}; it != decltype(it){}; it.increment(err))
+	for (auto it = llvm::sys::fs::directory_iterator{getVersionedCacheDir(), err}; it != decltype(it){}; it.increment(err))
 	{
-		auto name = it->path().substr(cachePath.size() + 1);
-		if (auto module = getObject(name, _llvmContext))
-		{
-			DLOG(cache) << "Preload: " << name << "\n";
-			_ee.addModule(std::move(module));
-			auto addr = _ee.getFunctionAddress(name);
-			assert(addr);
-			_funcCache[std::move(name)] = addr;
-		}
+		auto name = llvm::sys::path::filename(it->path());
+		if (!name.endswith(".tmp"))
+			ids.push_back(name.str());
 	}
+	return ids;
+}
 
-	g_listener = listener;
+std::unique_ptr<llvm::ObjectCache> Cache::loadObject(std::string const& _id)
+{
+	llvm::SmallString<256> cachePath;
+	{
+		Guard g{x_cacheMutex};
+		if (g_mode != CacheMode::on && g_mode != CacheMode::read)
+			return nullptr;
+		cachePath = getVersionedCacheDir();
+	}
+	llvm::sys::path::append(cachePath, _id);
+
+	bool corrupted = false;
+	auto object = readObject(cachePath, corrupted);
+	if (corrupted)
+	{
+		Guard g{x_cacheMutex};
+		removeObject(cachePath);
+	}
+	if (!object)
+		return nullptr;
+	DLOG(cache) << _id << ": loaded\n";
+	return llvm::make_unique<LoadedObject>(std::move(object));
+}
+
+std::unique_ptr<llvm::Module> Cache::createModule(std::string const& _id, llvm::LLVMContext& _llvmContext)
+{
+	auto module = llvm::make_unique<llvm::Module>(_id, _llvmContext);
+	auto mainFuncType = llvm::FunctionType::get(llvm::Type::getVoidTy(_llvmContext), {}, false);
+	auto mainFunc = llvm::Function::Create(mainFuncType, llvm::Function::ExternalLinkage, _id, module.get());
+	auto bb = llvm::BasicBlock::Create(_llvmContext, {}, mainFunc);
+	bb->getInstList().push_back(new llvm::UnreachableInst{_llvmContext});
+	return module;
 }
 
 std::unique_ptr<llvm::Module> Cache::getObject(std::string const& id, llvm::LLVMContext& _llvmContext)
@@ -123,20 +321,15 @@ std::unique_ptr<llvm::Module> Cache::getObject(std::string const& id, llvm::LLVM
 	llvm::SmallString<256> cachePath{getVersionedCacheDir()};
 	llvm::sys::path::append(cachePath, id);
 
-	if (auto r = llvm::MemoryBuffer::getFile(cachePath, -1, false))
-		g_lastObject = llvm::MemoryBuffer::getMemBufferCopy(r.get()->getBuffer());
-	else if (r.getError() != std::make_error_code(std::errc::no_such_file_or_directory))
-		DLOG(cache) << r.getError().message(); // TODO: Add warning log
+	bool corrupted = false;
+	g_lastObject = readObject(cachePath, corrupted);
+	if (corrupted)
+		removeObject(cachePath);
 
 	if (g_lastObject)  // if object found create fake module
 	{
 		DLOG(cache) << id << ": found\n";
-		auto module = llvm::make_unique<llvm::Module>(id, _llvmContext);
-		auto mainFuncType = llvm::FunctionType::get(llvm::Type::getVoidTy(_llvmContext), {}, false);
-		auto mainFunc = llvm::Function::Create(mainFuncType, llvm::Function::ExternalLinkage, id, module.get());
-		auto bb = llvm::BasicBlock::Create(_llvmContext, {}, mainFunc);
-		bb->getInstList().push_back(new llvm::UnreachableInst{_llvmContext});
-		return module;
+		return createModule(id, _llvmContext);
 	}
 	DLOG(cache) << id << ": not found\n";
 	return nullptr;
@@ -163,12 +356,39 @@ void ObjectCache::notifyObjectCompiled(llvm::Module const* _module, llvm::Memory
 		return;
 	}
 
-	llvm::sys::path::append(cachePath, id);
+	// Write to a temporary file first, so that readers never see a partial
+	// object.
+	llvm::SmallString<256> tmpPath;
+	int fd;
+	if (auto err = llvm::sys::fs::createUniqueFile(llvm::Twine{cachePath} + "/%%%%%%%%.tmp", fd, tmpPath))
+	{
+		DLOG(cache) << "Cannot create cache file (error: " << err.message() << "\n";
+		return;
+	}
+
+	auto object = _object.getBuffer();
+	ObjectHeader header;
+	std::memcpy(header.magic, c_magic, sizeof(c_magic));
+	header.abiVersion = c_internalABIVersion;
+	header.size = object.size();
+	header.checksum = checksum(object);
+	{
+		llvm::raw_fd_ostream tmpFile(fd, true);
+		tmpFile.write(reinterpret_cast<char const*>(&header), sizeof(header));
+		tmpFile << object;
+	}
 
+	llvm::sys::path::append(cachePath, id);
 	DLOG(cache) << id << ": write\n";
-	std::error_code error;
-	llvm::raw_fd_ostream cacheFile(cachePath, error, llvm::sys::fs::F_None);
-	cacheFile << _object.getBuffer();
+	if (llvm::sys::fs::rename(tmpPath, cachePath))
+	{
+		llvm::sys::fs::remove(tmpPath);
+		return;
+	}
+
+	if (g_sizeKnown)
+		g_size += sizeof(header) + object.size();
+	evictObjects();
 }
 
 std::unique_ptr<llvm::MemoryBuffer> ObjectCache::getObject(llvm::Module const* _module)
@@ -2,6 +2,7 @@
 
 #include <memory>
 #include <unordered_map>
+#include <vector>
 
 #include "preprocessor/llvm_includes_start.h"
 #include <llvm/ExecutionEngine/ObjectCache.h>
@@ -47,14 +48,33 @@ class Cache
 {
 public:
 	static ObjectCache* init(CacheMode _mode, JITListener* _listener);
+
+	/// Sets the mode, e.g. enables or disables the cache.
+	static void setMode(CacheMode _mode);
+
+	/// Sets the directory of the cache storage. The objects are kept in a
+	/// subdirectory per ABI version. Defaults to "cache".
+	static void setDirectory(std::string const& _dir);
+
+	/// Sets the maximum size of the cache storage in bytes. Once exceeded,
+	/// the least recently used objects are removed.
+	static void setSizeLimit(uint64_t _limit);
+
 	static std::unique_ptr<llvm::Module> getObject(std::string const& id, llvm::LLVMContext& _llvmContext);
 
 	/// Clears cache storage
 	static void clear();
 
-	/// Loads all available cached objects to ExecutionEngine
-	static void preload(llvm::ExecutionEngine& _ee, std::unordered_map<std::string, uint64_t>& _funcCache,
-						llvm::LLVMContext& _llvmContext);
+	/// Lists the identifiers of the stored objects.
+	static std::vector<std::string> listObjects();
+
+	/// Loads the stored object of the given identifier. The returned cache
+	/// hands the object to the engine of a module made by createModule().
+	/// Can be called from several threads at once.
+	static std::unique_ptr<llvm::ObjectCache> loadObject(std::string const& _id);
+
+	/// Creates the stand-in module of a stored object.
+	static std::unique_ptr<llvm::Module> createModule(std::string const& _id, llvm::LLVMContext& _llvmContext);
 };
 
 }
@@ -44,10 +44,9 @@ namespace jit
 
 static const auto c_destIdxLabel = "destIdx";
 
-Compiler::Compiler(Options const& _options, evm_revision _rev, bool _staticCall, llvm::LLVMContext& _llvmContext):
+Compiler::Compiler(Options const& _options, evm_revision _rev, llvm::LLVMContext& _llvmContext):
 	m_options(_options),
 	m_rev(_rev),
-	m_staticCall(_staticCall),
 	m_builder(_llvmContext)
 {
 	Type::init(m_builder.getContext());
@@ -163,7 +162,47 @@ void Compiler::resolveJumps()
 	}
 }
 
-std::unique_ptr<llvm::Module> Compiler::compile(code_iterator _begin, code_iterator _end, std::string const& _id)
+void Compiler::abortIfStatic(RuntimeManager& _runtimeManager, GasMeter& _gasMeter)
+{
+	// Select infinite penalty in static call mode, like for value transfers.
+	auto penalty = m_builder.CreateSelect(_runtimeManager.isStaticCall(),
+			m_builder.getInt64(std::numeric_limits<int64_t>::max()), m_builder.getInt64(0), "static.penalty");
+	_gasMeter.count(penalty, _runtimeManager.getJmpBuf(), _runtimeManager.getGasPtr());
+}
+
+void Compiler::resumeBasicBlock(BasicBlock& _basicBlock, RuntimeManager& _runtimeManager)
+{
+	m_builder.SetInsertPoint(_basicBlock.llvm());
+	if (Instruction(*_basicBlock.begin()) == Instruction::JUMPDEST)
+	{
+		// Jumps into the block still have to land here.
+		auto jumpTable = llvm::cast<llvm::SwitchInst>(m_jumpTableBB->getTerminator());
+		jumpTable->addCase(Constant::get(_basicBlock.firstInstrIdx()), _basicBlock.llvm());
+	}
+
+	static const auto c_funcName = "evm.resume";
+	auto module = m_mainFunc->getParent();
+	auto func = module->getFunction(c_funcName);
+	if (!func)
+	{
+		llvm::Type* argsTys[] = {Type::RuntimePtr, Type::Size, Type::WordPtr, Type::Size, Type::GasPtr,
+				Type::BytePtr, Type::Size, Type::MainReturn};
+		func = llvm::Function::Create(llvm::FunctionType::get(Type::MainReturn, argsTys, false),
+				llvm::Function::ExternalLinkage, c_funcName, module);
+	}
+
+	// The stack and the gas are up to date at the beginning of a block.
+	auto stackSize = m_builder.CreateLoad(_runtimeManager.getStackSize(), "stack.size");
+	auto returnBufData = m_builder.CreateLoad(_runtimeManager.getReturnBufDataPtr(), "returndata");
+	auto returnBufSize = m_builder.CreateLoad(_runtimeManager.getReturnBufSizePtr(), "returndatasize");
+	auto ret = m_builder.CreateCall(func, {_runtimeManager.getRuntimePtr(), m_builder.getInt64(_basicBlock.firstInstrIdx()),
+			_runtimeManager.getStackBase(), stackSize, _runtimeManager.getGasPtr(), returnBufData, returnBufSize,
+			m_builder.getInt32(m_rev)}, "resume");
+	_runtimeManager.exit(ret);
+}
+
+std::unique_ptr<llvm::Module> Compiler::compile(code_iterator _begin, code_iterator _end, std::string const& _id,
+		std::vector<bool> const* _region)
 {
 	auto module = llvm::make_unique<llvm::Module>(_id, m_builder.getContext()); // TODO: Provide native DataLayout
 
@@ -190,7 +229,7 @@ std::unique_ptr<llvm::Module> Compiler::compile(code_iterator _begin, code_itera
 
 
 	// Init runtime structures.
-	RuntimeManager runtimeManager(m_builder, _begin, _end);
+	RuntimeManager runtimeManager(m_builder);
 	GasMeter gasMeter(m_builder, runtimeManager, m_rev);
 	Memory memory(runtimeManager, gasMeter, m_rev);
 	Ext ext(runtimeManager, memory);
@@ -212,7 +251,12 @@ std::unique_ptr<llvm::Module> Compiler::compile(code_iterator _begin, code_itera
 	m_builder.CreateCondBr(normalFlow, entryBB->getNextNode(), abortBB, Type::expectTrue);
 
 	for (auto& block: blocks)
-		compileBasicBlock(block, runtimeManager, arith, memory, ext, gasMeter);
+	{
+		if (_region && !(*_region)[block.firstInstrIdx()])
+			resumeBasicBlock(block, runtimeManager);
+		else
+			compileBasicBlock(block, runtimeManager, arith, memory, ext, gasMeter);
+	}
 
 	// Code for special blocks:
 	m_builder.SetInsertPoint(stopBB);
@@ -618,8 +662,7 @@ void Compiler::compileBasicBlock(BasicBlock& _basicBlock, RuntimeManager& _runti
 
 		case Instruction::SSTORE:
 		{
-			if (m_staticCall)
-				goto invalidInstruction;
+			abortIfStatic(_runtimeManager, _gasMeter);
 
 			auto index = stack.pop();
 			auto value = stack.pop();
@@ -808,7 +851,7 @@ void Compiler::compileBasicBlock(BasicBlock& _basicBlock, RuntimeManager& _runti
 			auto srcIdx = stack.pop();
 			auto reqBytes = stack.pop();
 
-			auto srcPtr = _runtimeManager.getCode();    // TODO: Code & its size are constants, feature #80814234
+			auto srcPtr = _runtimeManager.getCode();
 			auto srcSize = _runtimeManager.getCodeSize();
 
 			_memory.copyBytes(srcPtr, srcSize, srcIdx, destMemIdx, reqBytes);
@@ -838,8 +881,7 @@ void Compiler::compileBasicBlock(BasicBlock& _basicBlock, RuntimeManager& _runti
 
 		case Instruction::CREATE:
 		{
-			if (m_staticCall)
-				goto invalidInstruction;
+			abortIfStatic(_runtimeManager, _gasMeter);
 
 			auto endowment = stack.pop();
 			auto initOff = stack.pop();
@@ -907,13 +949,13 @@ void Compiler::compileBasicBlock(BasicBlock& _basicBlock, RuntimeManager& _runti
 
 			// For static call mode, select infinite penalty for CALL with
 			// value transfer.
-			auto const transferGas = (inst == Instruction::CALL && m_staticCall) ?
-				std::numeric_limits<int64_t>::max() :
-				(m_rev >= EVM_AION ? 15000 : JITSchedule::valueTransferGas::value);
+			llvm::Value* transferGas = m_builder.getInt64(m_rev >= EVM_AION ? 15000 : JITSchedule::valueTransferGas::value);
+			if (inst == Instruction::CALL)
+				transferGas = m_builder.CreateSelect(_runtimeManager.isStaticCall(),
+						m_builder.getInt64(std::numeric_limits<int64_t>::max()), transferGas);
 
 			auto transferCost = m_builder.CreateSelect(
-					noTransfer, m_builder.getInt64(0),
-					m_builder.getInt64(transferGas));
+					noTransfer, m_builder.getInt64(0), transferGas);
 			_gasMeter.count(transferCost, _runtimeManager.getJmpBuf(),
 							_runtimeManager.getGasPtr());
 
@@ -992,8 +1034,7 @@ void Compiler::compileBasicBlock(BasicBlock& _basicBlock, RuntimeManager& _runti
 
 		case Instruction::SELFDESTRUCT:
 		{
-			if (m_staticCall)
-				goto invalidInstruction;
+			abortIfStatic(_runtimeManager, _gasMeter);
 
 			auto dest = popWord256(stack);
 			if (m_rev >= EVM_TANGERINE_WHISTLE)
@@ -1027,8 +1068,7 @@ void Compiler::compileBasicBlock(BasicBlock& _basicBlock, RuntimeManager& _runti
 		case Instruction::LOG3:
 		case Instruction::LOG4:
 		{
-			if (m_staticCall)
-				goto invalidInstruction;
+			abortIfStatic(_runtimeManager, _gasMeter);
 
 			auto beginIdx = stack.pop();
 			auto numBytes = stack.pop();
@@ -23,9 +23,13 @@ public:
 		bool dumpCFG = false;
 	};
 
-	Compiler(Options const& _options, evm_revision _rev, bool _staticCall, llvm::LLVMContext& _llvmContext);
+	Compiler(Options const& _options, evm_revision _rev, llvm::LLVMContext& _llvmContext);
 
-	std::unique_ptr<llvm::Module> compile(code_iterator _begin, code_iterator _end, std::string const& _id);
+	/// Compiles the code. With a region given only the basic blocks flagged
+	/// at their beginning are compiled, jumps to the others continue the
+	/// execution in the interpreter.
+	std::unique_ptr<llvm::Module> compile(code_iterator _begin, code_iterator _end, std::string const& _id,
+		std::vector<bool> const* _region = nullptr);
 
 private:
 
@@ -33,8 +37,16 @@ private:
 
 	void compileBasicBlock(BasicBlock& _basicBlock, class RuntimeManager& _runtimeManager, class Arith128& _arith, class Memory& _memory, class Ext& _ext, class GasMeter& _gasMeter);
 
+	/// Compiles a basic block outside of the compiled region as a call to
+	/// the interpreter, which continues the execution at its beginning.
+	void resumeBasicBlock(BasicBlock& _basicBlock, class RuntimeManager& _runtimeManager);
+
 	void resolveJumps();
 
+	/// Aborts the execution in static call mode. Checked at run time so that
+	/// the same code serves static and non-static calls.
+	void abortIfStatic(class RuntimeManager& _runtimeManager, class GasMeter& _gasMeter);
+
 	void pushWord256(LocalStack& stack, llvm::Value *hash);
 	llvm::Value * popWord256(LocalStack& stack);
 
@@ -44,8 +56,6 @@ private:
 	/// EVM revision.
 	evm_revision m_rev;
 
-	bool const m_staticCall = false;
-
 	/// Helper class for generating IR
 	IRBuilder m_builder;
 
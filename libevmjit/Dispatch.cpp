@@ -0,0 +1,175 @@
+#include "Dispatch.h"
+
+#include "Instruction.h"
+
+namespace dev
+{
+namespace evmjit
+{
+
+namespace
+{
+
+bool isPush(byte _opcode)
+{
+	return _opcode >= static_cast<byte>(Instruction::PUSH1) && _opcode <= static_cast<byte>(Instruction::PUSH32);
+}
+
+uint64_t pushSize(byte _opcode)
+{
+	return isPush(_opcode) ? _opcode - static_cast<byte>(Instruction::PUSH1) + 1 : 0;
+}
+
+/// Reads the PUSH data at the given offset. Values which are not a code
+/// offset are returned as the code size.
+uint64_t readOffset(byte const* _code, uint64_t _codeSize, uint64_t _pc)
+{
+	auto const size = pushSize(_code[_pc]);
+	uint64_t value = 0;
+	for (uint64_t i = 1; i <= size; ++i)
+	{
+		auto const b = _pc + i < _codeSize ? _code[_pc + i] : 0;
+		if (value >> 56)
+			return _codeSize;
+		value = value << 8 | b;
+	}
+	return value < _codeSize ? value : _codeSize;
+}
+
+bool is(byte const* _code, uint64_t _codeSize, uint64_t _pc, Instruction _inst)
+{
+	return _pc < _codeSize && Instruction(_code[_pc]) == _inst;
+}
+
+bool isTerminator(Instruction _inst)
+{
+	switch (_inst)
+	{
+	case Instruction::JUMP:
+	case Instruction::RETURN:
+	case Instruction::REVERT:
+	case Instruction::STOP:
+	case Instruction::SELFDESTRUCT:
+		return true;
+	default:
+		return false;
+	}
+}
+
+}
+
+std::vector<DispatchEntry> findDispatch(byte const* _code, uint64_t _codeSize)
+{
+	std::vector<DispatchEntry> dispatch;
+	for (uint64_t pc = 0; pc < _codeSize; pc += 1 + pushSize(_code[pc]))
+	{
+		// DUP1 PUSH4 selector EQ PUSHn dest JUMPI
+		auto const push = pc + 1;
+		auto const eq = push + 5;
+		auto const dest = eq + 1;
+		if (!is(_code, _codeSize, pc, Instruction::DUP1) || !is(_code, _codeSize, push, Instruction::PUSH4) ||
+			!is(_code, _codeSize, eq, Instruction::EQ) || dest >= _codeSize || !isPush(_code[dest]))
+			continue;
+		auto const jumpi = dest + 1 + pushSize(_code[dest]);
+		if (!is(_code, _codeSize, jumpi, Instruction::JUMPI))
+			continue;
+
+		uint32_t selector = 0;
+		for (uint64_t i = push + 1; i < eq; ++i)
+			selector = selector << 8 | _code[i];
+		dispatch.push_back({selector, jumpi});
+	}
+	return dispatch;
+}
+
+std::vector<bool> findRegion(byte const* _code, uint64_t _codeSize, std::vector<DispatchEntry> const& _dispatch,
+	uint64_t _selector)
+{
+	std::vector<bool> jumpDests(_codeSize, false);
+	std::vector<bool> skippedJumps(_codeSize, false);
+	for (uint64_t pc = 0; pc < _codeSize; pc += 1 + pushSize(_code[pc]))
+	{
+		if (Instruction(_code[pc]) == Instruction::JUMPDEST)
+			jumpDests[pc] = true;
+	}
+	for (auto& entry: _dispatch)
+	{
+		if (entry.selector != _selector)
+			skippedJumps[entry.jumpi] = true;
+	}
+
+	std::vector<bool> region(_codeSize, false);
+	std::vector<uint64_t> queue;
+	auto add = [&](uint64_t _pc)
+	{
+		if (_pc < _codeSize && !region[_pc])
+		{
+			region[_pc] = true;
+			queue.push_back(_pc);
+		}
+	};
+
+	// The jump destinations pushed as a value rather than as the operand of
+	// a jump, only added once the region has a computed jump.
+	std::vector<uint64_t> addressTaken;
+	bool computedJump = false;
+
+	add(0);
+	while (!queue.empty())
+	{
+		auto pc = queue.back();
+		queue.pop_back();
+
+		auto constantDest = _codeSize;
+		for (auto begin = pc; pc < _codeSize; pc += 1 + pushSize(_code[pc]))
+		{
+			auto const inst = Instruction(_code[pc]);
+			if (pc != begin && inst == Instruction::JUMPDEST)
+			{
+				add(pc);
+				break;
+			}
+
+			if (inst == Instruction::JUMP || inst == Instruction::JUMPI)
+			{
+				if (constantDest == _codeSize)
+				{
+					if (!computedJump)
+					{
+						computedJump = true;
+						for (auto dest: addressTaken)
+							add(dest);
+					}
+				}
+				else if (jumpDests[constantDest] && !skippedJumps[pc])
+					add(constantDest);
+
+				if (inst == Instruction::JUMPI)
+					add(pc + 1);
+				break;
+			}
+			if (isTerminator(inst))
+				break;
+
+			constantDest = _codeSize;
+			if (isPush(_code[pc]))
+			{
+				auto const value = readOffset(_code, _codeSize, pc);
+				auto const next = pc + 1 + pushSize(_code[pc]);
+				if (is(_code, _codeSize, next, Instruction::JUMP) || is(_code, _codeSize, next, Instruction::JUMPI))
+					constantDest = value;
+				else if (value < _codeSize && jumpDests[value])
+				{
+					if (computedJump)
+						add(value);
+					else
+						addressTaken.push_back(value);
+				}
+			}
+		}
+	}
+	return region;
+}
+
+}
+}
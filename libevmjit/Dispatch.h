@@ -0,0 +1,43 @@
+#pragma once
+
+#include <vector>
+
+#include "Common.h"
+
+namespace dev
+{
+namespace evmjit
+{
+
+/// A comparison of the selector dispatch of Solidity code:
+/// `DUP1 PUSH4 selector EQ PUSHn dest JUMPI`.
+struct DispatchEntry
+{
+	uint32_t selector;
+
+	/// Code offset of the JUMPI taken for the selector.
+	uint64_t jumpi;
+};
+
+/// The region of the code run when no dispatch entry matches the call data.
+constexpr uint64_t c_fallbackRegion = uint64_t(1) << 32;
+
+/// Finds the selector dispatch of the code, in code order. Empty if the code
+/// was not generated by the Solidity compiler.
+std::vector<DispatchEntry> findDispatch(byte const* _code, uint64_t _codeSize);
+
+/// Finds the basic blocks the given selector, or c_fallbackRegion, can run.
+/// Returns a flag per code offset, set for the offsets where such a block
+/// begins.
+///
+/// The region follows the fallthrough and constant jumps from the beginning
+/// of the code, except the dispatch jumps of the other selectors. A jump to
+/// a computed destination can land at any jump destination pushed as a
+/// constant in the region, as Solidity does for the return addresses of
+/// internal functions. Code may still jump elsewhere, so the region is a
+/// guess which compiled code has to check.
+std::vector<bool> findRegion(byte const* _code, uint64_t _codeSize, std::vector<DispatchEntry> const& _dispatch,
+	uint64_t _selector);
+
+}
+}
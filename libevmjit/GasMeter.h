@@ -2,7 +2,7 @@
 
 #include <evm.h>
 #include "CompilerHelper.h"
-#include "Instruction.h"
+#include "GasSchedule.h"
 
 namespace dev
 {
@@ -49,8 +49,6 @@ public:
 	void countCopy(llvm::Value* _copyWords);
 
 private:
-	int64_t getStepCost(Instruction inst) const;
-
 	/// Cumulative gas cost of a block of instructions
 	/// @TODO Handle overflow
 	int64_t m_blockCost = 0;
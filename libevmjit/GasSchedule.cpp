@@ -0,0 +1,136 @@
+#include "GasSchedule.h"
+
+#include "JIT.h"
+
+namespace dev
+{
+namespace evmjit
+{
+
+int64_t getStepCost(Instruction _inst, evm_revision _rev)
+{
+	switch (_inst)
+	{
+	// Tier 0
+	case Instruction::STOP:
+	case Instruction::RETURN:
+	case Instruction::REVERT:
+	case Instruction::SSTORE: // Handle cost of SSTORE separately in GasMeter::countSStore()
+		return JITSchedule::stepGas0::value;
+
+	// Tier 1
+	case Instruction::ADDRESS:
+	case Instruction::ORIGIN:
+	case Instruction::CALLER:
+	case Instruction::CALLVALUE:
+	case Instruction::CALLDATASIZE:
+	case Instruction::RETURNDATASIZE:
+	case Instruction::CODESIZE:
+	case Instruction::GASPRICE:
+	case Instruction::COINBASE:
+	case Instruction::TIMESTAMP:
+	case Instruction::NUMBER:
+	case Instruction::DIFFICULTY:
+	case Instruction::GASLIMIT:
+	case Instruction::POP:
+	case Instruction::PC:
+	case Instruction::MSIZE:
+	case Instruction::GAS:
+		return _rev >= EVM_AION ? 1 : JITSchedule::stepGas1::value;
+
+	// Tier 2
+	case Instruction::ADD:
+	case Instruction::SUB:
+	case Instruction::LT:
+	case Instruction::GT:
+	case Instruction::SLT:
+	case Instruction::SGT:
+	case Instruction::EQ:
+	case Instruction::ISZERO:
+	case Instruction::AND:
+	case Instruction::OR:
+	case Instruction::XOR:
+	case Instruction::NOT:
+	case Instruction::BYTE:
+	case Instruction::CALLDATALOAD:
+	case Instruction::CALLDATACOPY:
+	case Instruction::RETURNDATACOPY:
+	case Instruction::CODECOPY:
+	case Instruction::MLOAD:
+	case Instruction::MSTORE:
+	case Instruction::MSTORE8:
+	case Instruction::ANY_PUSH:
+	case Instruction::ANY_DUP:
+	case Instruction::ANY_SWAP:
+		return _rev >= EVM_AION ? 1 : JITSchedule::stepGas2::value;
+
+	// Tier 3
+	case Instruction::MUL:
+	case Instruction::DIV:
+	case Instruction::SDIV:
+	case Instruction::MOD:
+	case Instruction::SMOD:
+	case Instruction::SIGNEXTEND:
+		return _rev >= EVM_AION ? 1 : JITSchedule::stepGas3::value;
+
+	// Tier 4
+	case Instruction::ADDMOD:
+	case Instruction::MULMOD:
+	case Instruction::JUMP:
+		return _rev >= EVM_AION ? 1 : JITSchedule::stepGas4::value;
+
+	// Tier 5
+	case Instruction::EXP:
+	case Instruction::JUMPI:
+		return _rev >= EVM_AION ? 1 : JITSchedule::stepGas5::value;
+
+	// Tier 6
+	case Instruction::BALANCE:
+		return _rev >= EVM_AION ? 1000 : (_rev >= EVM_TANGERINE_WHISTLE ? 400 : JITSchedule::stepGas6::value);
+
+	case Instruction::EXTCODESIZE:
+	case Instruction::EXTCODECOPY:
+		return _rev >= EVM_AION ? 1000 : (_rev >= EVM_TANGERINE_WHISTLE ? 700 : JITSchedule::stepGas6::value);
+
+	case Instruction::BLOCKHASH:
+		return JITSchedule::stepGas6::value;
+
+	case Instruction::SHA3:
+		return JITSchedule::sha3Gas::value;
+
+	case Instruction::SLOAD:
+		return _rev >= EVM_AION ? 1000 : (_rev >= EVM_TANGERINE_WHISTLE ? 200 : JITSchedule::sloadGas::value);
+
+	case Instruction::JUMPDEST:
+		return JITSchedule::jumpdestGas::value;
+
+	case Instruction::LOG0:
+	case Instruction::LOG1:
+	case Instruction::LOG2:
+	case Instruction::LOG3:
+	case Instruction::LOG4:
+	{
+		auto numTopics = static_cast<int64_t>(_inst) - static_cast<int64_t>(Instruction::LOG0);
+		return (_rev >= EVM_AION ? 500 : JITSchedule::logGas::value) + numTopics * (_rev >= EVM_AION ? 500 : JITSchedule::logTopicGas::value);
+	}
+
+	case Instruction::CALL:
+	case Instruction::CALLCODE:
+	case Instruction::DELEGATECALL:
+	case Instruction::STATICCALL:
+		return _rev >= EVM_AION ? 1000 : (_rev >= EVM_TANGERINE_WHISTLE ? 700 : JITSchedule::callGas::value);
+
+	case Instruction::CREATE:
+		return _rev >= EVM_AION ? 200000 : JITSchedule::createGas::value;
+
+	case Instruction::SELFDESTRUCT:
+		return _rev >= EVM_TANGERINE_WHISTLE ? 5000 : JITSchedule::stepGas0::value;
+
+	default:
+		// For invalid instruction just return 0.
+		return 0;
+	}
+}
+
+}
+}
@@ -0,0 +1,18 @@
+#pragma once
+
+#include <evm.h>
+
+#include "Instruction.h"
+
+namespace dev
+{
+namespace evmjit
+{
+
+/// Static gas cost of the instruction in the given revision. The additional
+/// costs depending on the operands, e.g. of memory, copies and SSTORE, are
+/// counted separately. Used by both the compiled code and the interpreter.
+int64_t getStepCost(Instruction _inst, evm_revision _rev);
+
+}
+}
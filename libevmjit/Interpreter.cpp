@@ -0,0 +1,1000 @@
+#include "Interpreter.h"
+
+#include <algorithm>
+#include <cstdlib>
+#include <cstring>
+#include <limits>
+#include <memory>
+#include <vector>
+
+#include "GasSchedule.h"
+#include "Instruction.h"
+#include "Utils.h"
+
+namespace dev
+{
+namespace evmjit
+{
+
+namespace
+{
+
+using word = unsigned __int128;
+using sword = __int128;
+
+/// The flag indicating call failure in the result of the call function.
+constexpr int64_t c_callFailure = std::numeric_limits<int64_t>::min();
+
+/// The call kind of STATICCALL passed to the call function.
+constexpr int c_staticCall = EVM_CREATE + 1;
+
+constexpr int64_t c_gasMax = std::numeric_limits<int64_t>::max();
+
+constexpr size_t c_stackLimit = JITSchedule::stackLimit::value;
+
+/// Max value of memory offsets and sizes which does not overflow the memory
+/// cost calculation. Larger values are charged the maximum gas.
+constexpr uint64_t c_memInputMax = uint64_t(1) << 33;
+
+/// Aborts the execution, like the out of gas jump of compiled code.
+struct Abort {};
+
+word load(uint8_t const* _bytes)
+{
+	word value = 0;
+	for (size_t i = 0; i < sizeof(word); ++i)
+		value = (value << 8) | _bytes[i];
+	return value;
+}
+
+void store(uint8_t* _bytes, word _value)
+{
+	for (size_t i = sizeof(word); i > 0; --i)
+	{
+		_bytes[i - 1] = static_cast<uint8_t>(_value);
+		_value >>= 8;
+	}
+}
+
+unsigned countLeadingZeros(word _value)
+{
+	auto high = static_cast<uint64_t>(_value >> 64);
+	auto low = static_cast<uint64_t>(_value);
+	if (high)
+		return __builtin_clzll(high);
+	return low ? 64 + __builtin_clzll(low) : 128;
+}
+
+/// (_a + _b) % _m for _a, _b < _m, without overflow.
+word addMod(word _a, word _b, word _m)
+{
+	return _a >= _m - _b ? _a - (_m - _b) : _a + _b;
+}
+
+word mulMod(word _a, word _b, word _m)
+{
+	_a %= _m;
+	_b %= _m;
+	word r = 0;
+	for (; _b != 0; _b >>= 1)
+	{
+		if (_b & 1)
+			r = addMod(r, _a, _m);
+		_a = addMod(_a, _a, _m);
+	}
+	return r;
+}
+
+word exp(word _base, word _exponent)
+{
+	word r = 1;
+	for (; _exponent != 0; _exponent >>= 1)
+	{
+		if (_exponent & 1)
+			r *= _base;
+		_base *= _base;
+	}
+	return r;
+}
+
+bool isPush(uint8_t _opcode)
+{
+	return _opcode >= static_cast<uint8_t>(Instruction::PUSH1) && _opcode <= static_cast<uint8_t>(Instruction::PUSH32);
+}
+
+size_t pushSize(uint8_t _opcode)
+{
+	return _opcode - static_cast<size_t>(Instruction::PUSH1) + 1;
+}
+
+class Interpreter
+{
+public:
+	Interpreter(ExecutionContext& _ctx, evm_revision _rev, bool _staticCall, CallFunc _call,
+		ResumePoint const& _resume):
+		m_ctx(_ctx),
+		m_rt(*_ctx.m_data),
+		m_host(_ctx.m_ctx->fn_table),
+		m_rev(_rev),
+		m_staticCall(_staticCall),
+		m_call(_call),
+		m_code(m_rt.code),
+		m_codeSize(m_rt.codeSize),
+		m_gas(m_rt.gas),
+		m_stack(new word[c_stackLimit]),
+		m_resume(_resume)
+	{
+		std::memcpy(m_address.bytes, m_rt.address, sizeof(m_address.bytes));
+	}
+
+	ReturnCode run()
+	{
+		ReturnCode returnCode;
+		try
+		{
+			findJumpDests();
+			resume();
+			returnCode = execute(static_cast<size_t>(m_resume.pc));
+		}
+		catch (Abort const&)
+		{
+			returnCode = ReturnCode::OutOfGas;
+		}
+		m_rt.gas = m_gas;
+		return returnCode;
+	}
+
+private:
+	ReturnCode execute(size_t _pc);
+
+	/// Takes over the stack and RETURNDATA buffer of the resume point.
+	void resume()
+	{
+		if (m_resume.stackSize > c_stackLimit || m_resume.pc > m_codeSize)
+			throw Abort{};
+		if (m_resume.stackSize)
+			std::memcpy(m_stack.get(), m_resume.stack, m_resume.stackSize * sizeof(word));
+		m_size = static_cast<size_t>(m_resume.stackSize);
+		m_returnBufData = m_resume.returnBufData;
+		m_returnBufSize = static_cast<size_t>(m_resume.returnBufSize);
+	}
+
+	void findJumpDests()
+	{
+		m_jumpDests.assign(m_codeSize, false);
+		for (size_t pc = 0; pc < m_codeSize; ++pc)
+		{
+			auto opcode = m_code[pc];
+			if (Instruction(opcode) == Instruction::JUMPDEST)
+				m_jumpDests[pc] = true;
+			else if (isPush(opcode))
+				pc += pushSize(opcode);
+		}
+	}
+
+	size_t jumpDest(word _dest) const
+	{
+		if (_dest >= m_codeSize || !m_jumpDests[static_cast<size_t>(_dest)])
+			throw Abort{};
+		return static_cast<size_t>(_dest);
+	}
+
+	void useGas(int64_t _cost)
+	{
+		if (_cost > m_gas)
+			throw Abort{};
+		m_gas -= _cost;
+	}
+
+	void useGas(word _cost)
+	{
+		useGas(_cost > static_cast<word>(c_gasMax) ? c_gasMax : static_cast<int64_t>(_cost));
+	}
+
+	void push(word _value)
+	{
+		if (m_size == c_stackLimit)
+			throw Abort{};
+		m_stack[m_size++] = _value;
+	}
+
+	word pop()
+	{
+		if (m_size == 0)
+			throw Abort{};
+		return m_stack[--m_size];
+	}
+
+	word& get(size_t _index)
+	{
+		if (_index >= m_size)
+			throw Abort{};
+		return m_stack[m_size - 1 - _index];
+	}
+
+	/// Pushes a 256-bit value given in big-endian order as two items.
+	void push256(uint8_t const* _bytes)
+	{
+		push(load(_bytes + sizeof(word)));
+		push(load(_bytes));
+	}
+
+	/// Pops two items as a 256-bit value in big-endian order.
+	void pop256(uint8_t* _bytes)
+	{
+		store(_bytes, pop());
+		store(_bytes + sizeof(word), pop());
+	}
+
+	uint64_t memCost(uint64_t _size) const
+	{
+		auto words = _size >> 5;
+		return words * (m_rev >= EVM_AION ? 1 : JITSchedule::memoryGas::value) + ((words * words) >> 9);
+	}
+
+	/// Charges for and extends the memory to cover the given range.
+	void require(word _offset, word _size)
+	{
+		if (_size == 0)
+			return;
+
+		bool const offsetOk = _offset <= c_memInputMax;
+		bool const sizeOk = _size <= c_memInputMax;
+		uint64_t const offset = offsetOk ? static_cast<uint64_t>(_offset) : c_memInputMax;
+		uint64_t const size = sizeOk ? static_cast<uint64_t>(_size) : c_memInputMax;
+		uint64_t const sizeReq = (offset + size + 31) & (uint64_t(-1) << 5);
+		if (sizeReq <= m_ctx.m_memSize)
+			return;
+
+		useGas(offsetOk && sizeOk ? static_cast<int64_t>(memCost(sizeReq) - memCost(m_ctx.m_memSize)) : c_gasMax);
+
+		auto data = static_cast<byte*>(std::realloc(m_ctx.m_memData, sizeReq));
+		if (!data)
+			throw Abort{};
+		std::memset(data + m_ctx.m_memSize, 0, sizeReq - m_ctx.m_memSize);
+		m_ctx.m_memData = data;
+		m_ctx.m_memSize = sizeReq;
+		m_ctx.m_memCap = sizeReq;
+	}
+
+	/// Returns a pointer to the given memory range, which must have been required.
+	byte* memory(word _offset, word _size)
+	{
+		return _size != 0 ? m_ctx.m_memData + static_cast<uint64_t>(_offset) : m_ctx.m_memData;
+	}
+
+	void useCopyGas(uint64_t _size)
+	{
+		useGas(static_cast<int64_t>((_size + 31) / 32 * JITSchedule::copyGas::value));
+	}
+
+	/// Copies data to memory, padding with zeros past the end of the source.
+	void copyBytes(byte const* _src, uint64_t _srcSize, word _srcIdx, word _destIdx, word _reqBytes)
+	{
+		require(_destIdx, _reqBytes);
+		auto const reqBytes = static_cast<uint64_t>(_reqBytes);
+		useCopyGas(reqBytes);
+		if (reqBytes == 0)
+			return;
+
+		uint64_t bytesToCopy = 0;
+		if (_srcIdx < _srcSize)
+			bytesToCopy = std::min(reqBytes, _srcSize - static_cast<uint64_t>(_srcIdx));
+
+		auto dest = memory(_destIdx, _reqBytes);
+		if (bytesToCopy)
+			std::memcpy(dest, _src + static_cast<uint64_t>(_srcIdx), bytesToCopy);
+		std::memset(dest + bytesToCopy, 0, reqBytes - bytesToCopy);
+	}
+
+	evm_tx_context const& txContext()
+	{
+		if (!m_txContextLoaded)
+		{
+			m_host->get_tx_context(&m_txContext, m_ctx.m_ctx);
+			m_txContextLoaded = true;
+		}
+		return m_txContext;
+	}
+
+	word sload(word _index)
+	{
+		evm_word key;
+		evm_word value;
+		store(key.bytes, _index);
+		m_host->get_storage(&value, m_ctx.m_ctx, &m_address, &key);
+		return load(value.bytes);
+	}
+
+	word balance(evm_address const& _address)
+	{
+		evm_word value;
+		m_host->get_balance(&value, m_ctx.m_ctx, &_address);
+		return load(value.bytes);
+	}
+
+	bool exists(evm_address const& _address)
+	{
+		return m_host->account_exists(m_ctx.m_ctx, &_address) != 0;
+	}
+
+	/// Calls the host, checking the call depth and the balance first.
+	int64_t call(int _kind, int64_t _gas, evm_address const& _address, word _value, word _inOff, word _inSize,
+		byte* _outData, size_t _outSize)
+	{
+		m_returnBufSize = 0;
+
+		if (m_rt.depth >= 1024)
+			return _gas | c_callFailure;
+
+		if (_kind != EVM_DELEGATECALL && _value != 0 && balance(m_address) < _value)
+			return _gas | c_callFailure;
+
+		evm_word value;
+		store(value.bytes, _value);
+		return m_call(m_ctx.m_ctx, _kind, _gas, &_address, &value, memory(_inOff, _inSize),
+			static_cast<size_t>(_inSize), _outData, _outSize, &m_returnBufData, &m_returnBufSize);
+	}
+
+	ExecutionContext& m_ctx;
+	RuntimeData& m_rt;
+	evm_context_fn_table const* m_host;
+	evm_revision const m_rev;
+	bool const m_staticCall;
+	CallFunc const m_call;
+
+	byte const* const m_code;
+	size_t const m_codeSize;
+	std::vector<bool> m_jumpDests;
+
+	int64_t m_gas;
+
+	std::unique_ptr<word[]> m_stack;
+	size_t m_size = 0;
+
+	ResumePoint const m_resume;
+
+	evm_address m_address;
+
+	evm_tx_context m_txContext;
+	bool m_txContextLoaded = false;
+
+	uint8_t const* m_returnBufData = nullptr;
+	size_t m_returnBufSize = 0;
+};
+
+ReturnCode Interpreter::execute(size_t _pc)
+{
+	size_t pc = _pc;
+	while (pc < m_codeSize)
+	{
+		auto const inst = Instruction(m_code[pc]);
+		useGas(getStepCost(inst, m_rev));
+
+		switch (inst)
+		{
+		case Instruction::ADD:
+		{
+			auto lhs = pop();
+			auto rhs = pop();
+			push(lhs + rhs);
+			break;
+		}
+
+		case Instruction::SUB:
+		{
+			auto lhs = pop();
+			auto rhs = pop();
+			push(lhs - rhs);
+			break;
+		}
+
+		case Instruction::MUL:
+		{
+			auto lhs = pop();
+			auto rhs = pop();
+			push(lhs * rhs);
+			break;
+		}
+
+		case Instruction::DIV:
+		{
+			auto d = pop();
+			auto n = pop();
+			push(n != 0 ? d / n : 0);
+			break;
+		}
+
+		case Instruction::SDIV:
+		{
+			auto d = static_cast<sword>(pop());
+			auto n = static_cast<sword>(pop());
+			if (n == 0)
+				push(0);
+			else if (n == -1)
+				push(0 - static_cast<word>(d));
+			else
+				push(static_cast<word>(d / n));
+			break;
+		}
+
+		case Instruction::MOD:
+		{
+			auto d = pop();
+			auto n = pop();
+			push(n != 0 ? d % n : 0);
+			break;
+		}
+
+		case Instruction::SMOD:
+		{
+			auto d = static_cast<sword>(pop());
+			auto n = static_cast<sword>(pop());
+			push(n != 0 && n != -1 ? static_cast<word>(d % n) : 0);
+			break;
+		}
+
+		case Instruction::ADDMOD:
+		{
+			auto a = pop();
+			auto b = pop();
+			auto m = pop();
+			push(m != 0 ? addMod(a % m, b % m, m) : 0);
+			break;
+		}
+
+		case Instruction::MULMOD:
+		{
+			auto a = pop();
+			auto b = pop();
+			auto m = pop();
+			push(m != 0 ? mulMod(a, b, m) : 0);
+			break;
+		}
+
+		case Instruction::EXP:
+		{
+			auto base = pop();
+			auto exponent = pop();
+			auto sigBytes = (128 - countLeadingZeros(exponent) + 7) / 8;
+			auto byteCost = m_rev >= EVM_AION ? 1 : (m_rev >= EVM_SPURIOUS_DRAGON ? 50 : JITSchedule::expByteGas::value);
+			useGas(static_cast<int64_t>(sigBytes * byteCost));
+			push(exp(base, exponent));
+			break;
+		}
+
+		case Instruction::NOT:
+			push(~pop());
+			break;
+
+		case Instruction::LT:
+		{
+			auto lhs = pop();
+			auto rhs = pop();
+			push(lhs < rhs);
+			break;
+		}
+
+		case Instruction::GT:
+		{
+			auto lhs = pop();
+			auto rhs = pop();
+			push(lhs > rhs);
+			break;
+		}
+
+		case Instruction::SLT:
+		{
+			auto lhs = static_cast<sword>(pop());
+			auto rhs = static_cast<sword>(pop());
+			push(lhs < rhs);
+			break;
+		}
+
+		case Instruction::SGT:
+		{
+			auto lhs = static_cast<sword>(pop());
+			auto rhs = static_cast<sword>(pop());
+			push(lhs > rhs);
+			break;
+		}
+
+		case Instruction::EQ:
+		{
+			auto lhs = pop();
+			auto rhs = pop();
+			push(lhs == rhs);
+			break;
+		}
+
+		case Instruction::ISZERO:
+			push(pop() == 0);
+			break;
+
+		case Instruction::AND:
+		{
+			auto lhs = pop();
+			auto rhs = pop();
+			push(lhs & rhs);
+			break;
+		}
+
+		case Instruction::OR:
+		{
+			auto lhs = pop();
+			auto rhs = pop();
+			push(lhs | rhs);
+			break;
+		}
+
+		case Instruction::XOR:
+		{
+			auto lhs = pop();
+			auto rhs = pop();
+			push(lhs ^ rhs);
+			break;
+		}
+
+		case Instruction::BYTE:
+		{
+			auto idx = pop();
+			auto value = pop();
+			push(idx < 16 ? (value >> (8 * (15 - static_cast<unsigned>(idx)))) & 0xff : 0);
+			break;
+		}
+
+		case Instruction::SIGNEXTEND:
+		{
+			auto idx = pop();
+			auto value = pop();
+			if (idx <= 14)
+			{
+				auto bitpos = static_cast<unsigned>(idx) * 8 + 7;
+				auto mask = (word(1) << bitpos) - 1;
+				value = ((value >> bitpos) & 1) ? value | ~mask : value & mask;
+			}
+			push(value);
+			break;
+		}
+
+		case Instruction::SHA3:
+		{
+			auto inOff = pop();
+			auto inSize = pop();
+			require(inOff, inSize);
+			auto size = static_cast<uint64_t>(inSize);
+			useGas(static_cast<int64_t>(JITSchedule::sha3WordGas::value * ((size + 31) / 32)));
+			uint8_t hash[32];
+			keccak(memory(inOff, inSize), size, hash);
+			push256(hash);
+			break;
+		}
+
+		case Instruction::POP:
+			pop();
+			break;
+
+		case Instruction::ANY_PUSH:
+		{
+			auto numBytes = pushSize(m_code[pc]);
+			uint8_t data[32] = {};
+			auto available = std::min(numBytes, m_codeSize - pc - 1);
+			std::copy_n(m_code + pc + 1, available, data + (32 - numBytes));
+			if (numBytes > 16)
+				push256(data);
+			else
+				push(load(data + 16));
+			pc += numBytes;
+			break;
+		}
+
+		case Instruction::ANY_DUP:
+		{
+			auto index = static_cast<size_t>(inst) - static_cast<size_t>(Instruction::DUP1);
+			push(get(index));
+			break;
+		}
+
+		case Instruction::ANY_SWAP:
+		{
+			auto index = static_cast<size_t>(inst) - static_cast<size_t>(Instruction::SWAP1) + 1;
+			std::swap(get(0), get(index));
+			break;
+		}
+
+		case Instruction::MLOAD:
+		{
+			auto addr = pop();
+			require(addr, sizeof(word));
+			push(load(memory(addr, sizeof(word))));
+			break;
+		}
+
+		case Instruction::MSTORE:
+		{
+			auto addr = pop();
+			auto value = pop();
+			require(addr, sizeof(word));
+			store(memory(addr, sizeof(word)), value);
+			break;
+		}
+
+		case Instruction::MSTORE8:
+		{
+			auto addr = pop();
+			auto value = pop();
+			require(addr, 1);
+			*memory(addr, 1) = static_cast<byte>(value);
+			break;
+		}
+
+		case Instruction::MSIZE:
+			push(m_ctx.m_memSize);
+			break;
+
+		case Instruction::SLOAD:
+			push(sload(pop()));
+			break;
+
+		case Instruction::SSTORE:
+		{
+			if (m_staticCall)
+				throw Abort{};
+
+			auto index = pop();
+			auto value = pop();
+			bool const isInsert = sload(index) == 0 && value != 0;
+			useGas(static_cast<int64_t>(isInsert ? JITSchedule::sstoreSetGas::value :
+				(m_rev >= EVM_AION ? 8000 : JITSchedule::sstoreResetGas::value)));
+
+			evm_word key;
+			evm_word val;
+			store(key.bytes, index);
+			store(val.bytes, value);
+			m_host->set_storage(m_ctx.m_ctx, &m_address, &key, &val);
+			break;
+		}
+
+		case Instruction::JUMP:
+			pc = jumpDest(pop());
+			continue;
+
+		case Instruction::JUMPI:
+		{
+			auto dest = pop();
+			if (pop() != 0)
+			{
+				pc = jumpDest(dest);
+				continue;
+			}
+			break;
+		}
+
+		case Instruction::JUMPDEST:
+			break;
+
+		case Instruction::PC:
+			push(pc);
+			break;
+
+		case Instruction::GAS:
+			push(static_cast<uint64_t>(m_gas));
+			break;
+
+		case Instruction::ADDRESS:
+			push256(m_rt.address);
+			break;
+
+		case Instruction::CALLER:
+			push256(m_rt.caller);
+			break;
+
+		case Instruction::ORIGIN:
+			push256(txContext().tx_origin.bytes);
+			break;
+
+		case Instruction::COINBASE:
+			push256(txContext().block_coinbase.bytes);
+			break;
+
+		case Instruction::GASPRICE:
+			push(load(txContext().tx_gas_price.bytes));
+			break;
+
+		case Instruction::DIFFICULTY:
+			push(load(txContext().block_difficulty.bytes));
+			break;
+
+		case Instruction::GASLIMIT:
+			push(static_cast<uint64_t>(txContext().block_gas_limit));
+			break;
+
+		case Instruction::NUMBER:
+			push(static_cast<uint64_t>(txContext().block_number));
+			break;
+
+		case Instruction::TIMESTAMP:
+			push(static_cast<uint64_t>(txContext().block_timestamp));
+			break;
+
+		case Instruction::CALLVALUE:
+			push(load(m_rt.apparentValue));
+			break;
+
+		case Instruction::CODESIZE:
+			push(m_codeSize);
+			break;
+
+		case Instruction::CALLDATASIZE:
+			push(m_rt.callDataSize);
+			break;
+
+		case Instruction::RETURNDATASIZE:
+			if (m_rev < EVM_BYZANTIUM)
+				throw Abort{};
+			push(m_returnBufSize);
+			break;
+
+		case Instruction::BLOCKHASH:
+		{
+			auto number = pop();
+			evm_hash hash = {};
+			if (number <= static_cast<word>(std::numeric_limits<int64_t>::max()))
+				m_host->get_block_hash(&hash, m_ctx.m_ctx, static_cast<int64_t>(number));
+			push256(hash.bytes);
+			break;
+		}
+
+		case Instruction::BALANCE:
+		{
+			evm_address addr;
+			pop256(addr.bytes);
+			push(balance(addr));
+			break;
+		}
+
+		case Instruction::EXTCODESIZE:
+		{
+			evm_address addr;
+			pop256(addr.bytes);
+			push(m_host->get_code(nullptr, m_ctx.m_ctx, &addr));
+			break;
+		}
+
+		case Instruction::CALLDATACOPY:
+		{
+			auto destMemIdx = pop();
+			auto srcIdx = pop();
+			auto reqBytes = pop();
+			copyBytes(m_rt.callData, m_rt.callDataSize, srcIdx, destMemIdx, reqBytes);
+			break;
+		}
+
+		case Instruction::RETURNDATACOPY:
+		{
+			if (m_rev < EVM_BYZANTIUM)
+				throw Abort{};
+
+			auto destMemIdx = pop();
+			auto srcIdx = pop();
+			auto reqBytes = pop();
+			require(destMemIdx, reqBytes);
+
+			auto reqSize = srcIdx + reqBytes;
+			if (reqSize < reqBytes || reqSize > m_returnBufSize)
+				throw Abort{};
+			useCopyGas(static_cast<uint64_t>(reqBytes));
+			if (reqBytes != 0)
+				std::memcpy(memory(destMemIdx, reqBytes), m_returnBufData + static_cast<uint64_t>(srcIdx),
+					static_cast<size_t>(reqBytes));
+			break;
+		}
+
+		case Instruction::CODECOPY:
+		{
+			auto destMemIdx = pop();
+			auto srcIdx = pop();
+			auto reqBytes = pop();
+			copyBytes(m_code, m_codeSize, srcIdx, destMemIdx, reqBytes);
+			break;
+		}
+
+		case Instruction::EXTCODECOPY:
+		{
+			evm_address addr;
+			pop256(addr.bytes);
+			auto destMemIdx = pop();
+			auto srcIdx = pop();
+			auto reqBytes = pop();
+
+			uint8_t const* code = nullptr;
+			auto codeSize = m_host->get_code(&code, m_ctx.m_ctx, &addr);
+			copyBytes(code, codeSize, srcIdx, destMemIdx, reqBytes);
+			break;
+		}
+
+		case Instruction::CALLDATALOAD:
+		{
+			auto idx = pop();
+			uint8_t data[sizeof(word)] = {};
+			if (idx < m_rt.callDataSize)
+			{
+				auto offset = static_cast<uint64_t>(idx);
+				std::copy_n(m_rt.callData + offset, std::min<uint64_t>(sizeof(word), m_rt.callDataSize - offset), data);
+			}
+			push(load(data));
+			break;
+		}
+
+		case Instruction::CREATE:
+		{
+			if (m_staticCall)
+				throw Abort{};
+
+			auto endowment = pop();
+			auto initOff = pop();
+			auto initSize = pop();
+			require(initOff, initSize);
+
+			int64_t const gasKept = m_rev >= EVM_TANGERINE_WHISTLE ? m_gas >> 6 : 0;
+			evm_address noAddress = {};
+			evm_address newAddress = {};
+			auto r = call(EVM_CREATE, m_gas - gasKept, noAddress, endowment, initOff, initSize,
+				newAddress.bytes, sizeof(newAddress.bytes));
+
+			bool const ok = r >= 0;
+			m_gas = (r & c_gasMax) + gasKept;
+			if (!ok)
+				newAddress = {};
+			push256(newAddress.bytes);
+			break;
+		}
+
+		case Instruction::CALL:
+		case Instruction::CALLCODE:
+		case Instruction::DELEGATECALL:
+		case Instruction::STATICCALL:
+		{
+			if (inst == Instruction::DELEGATECALL && m_rev < EVM_HOMESTEAD)
+				throw Abort{};
+
+			if (inst == Instruction::STATICCALL && m_rev < EVM_BYZANTIUM)
+				throw Abort{};
+
+			auto callGas = pop();
+			evm_address addr;
+			pop256(addr.bytes);
+			bool const hasValue = inst == Instruction::CALL || inst == Instruction::CALLCODE;
+			word value = hasValue ? pop() : 0;
+
+			auto inOff = pop();
+			auto inSize = pop();
+			auto outOff = pop();
+			auto outSize = pop();
+
+			require(outOff, outSize);
+			require(inOff, inSize);
+
+			bool const noTransfer = value == 0;
+			auto const transferGas = (inst == Instruction::CALL && m_staticCall) ? c_gasMax :
+				(m_rev >= EVM_AION ? 15000 : static_cast<int64_t>(JITSchedule::valueTransferGas::value));
+			if (!noTransfer)
+				useGas(transferGas);
+
+			if (inst == Instruction::CALL)
+			{
+				bool noPenalty = exists(addr);
+				if (m_rev >= EVM_SPURIOUS_DRAGON)
+					noPenalty = noPenalty || noTransfer;
+				if (!noPenalty)
+					useGas(static_cast<int64_t>(JITSchedule::callNewAccount::value));
+			}
+
+			if (m_rev >= EVM_TANGERINE_WHISTLE)
+			{
+				auto gasMaxAllowed = static_cast<word>(m_gas - (m_gas >> 6));
+				callGas = std::min(callGas, gasMaxAllowed);
+			}
+			useGas(callGas);
+
+			auto gas = static_cast<int64_t>(callGas) +
+				(noTransfer ? 0 : static_cast<int64_t>(JITSchedule::callStipend::value));
+			int kind = EVM_CALL;
+			switch (inst)
+			{
+			case Instruction::CALLCODE: kind = EVM_CALLCODE; break;
+			case Instruction::DELEGATECALL: kind = EVM_DELEGATECALL; break;
+			case Instruction::STATICCALL: kind = c_staticCall; break;
+			default: break;
+			}
+
+			auto r = call(kind, gas, addr, value, inOff, inSize, memory(outOff, outSize),
+				static_cast<size_t>(outSize));
+			m_gas += r & c_gasMax;
+			push(r >= 0);
+			break;
+		}
+
+		case Instruction::RETURN:
+		case Instruction::REVERT:
+		{
+			bool const isRevert = inst == Instruction::REVERT;
+			if (isRevert && m_rev < EVM_BYZANTIUM)
+				throw Abort{};
+
+			auto index = pop();
+			auto size = pop();
+			require(index, size);
+
+			m_rt.callData = size != 0 ? memory(index, size) : nullptr;
+			m_rt.callDataSize = static_cast<uint64_t>(size);
+			return isRevert ? ReturnCode::Revert : ReturnCode::Return;
+		}
+
+		case Instruction::SELFDESTRUCT:
+		{
+			if (m_staticCall)
+				throw Abort{};
+
+			evm_address dest;
+			pop256(dest.bytes);
+			if (m_rev >= EVM_TANGERINE_WHISTLE)
+			{
+				bool noPenalty = exists(dest);
+				if (m_rev >= EVM_SPURIOUS_DRAGON)
+					noPenalty = noPenalty || balance(m_address) == 0;
+				if (!noPenalty)
+					useGas(static_cast<int64_t>(JITSchedule::callNewAccount::value));
+			}
+			m_host->selfdestruct(m_ctx.m_ctx, &m_address, &dest);
+			return ReturnCode::Stop;
+		}
+
+		case Instruction::STOP:
+			return ReturnCode::Stop;
+
+		case Instruction::LOG0:
+		case Instruction::LOG1:
+		case Instruction::LOG2:
+		case Instruction::LOG3:
+		case Instruction::LOG4:
+		{
+			if (m_staticCall)
+				throw Abort{};
+
+			auto beginIdx = pop();
+			auto numBytes = pop();
+			require(beginIdx, numBytes);
+			useGas(numBytes * (m_rev >= EVM_AION ? 20 : JITSchedule::logDataGas::value));
+
+			// Each topic takes two stack items.
+			auto numTopics = static_cast<size_t>(inst) - static_cast<size_t>(Instruction::LOG0);
+			evm_word topics[8];
+			for (size_t i = 0; i < 2 * numTopics; ++i)
+				store(topics[i].bytes, pop());
+
+			m_host->log(m_ctx.m_ctx, &m_address, memory(beginIdx, numBytes), static_cast<size_t>(numBytes),
+				topics, 2 * numTopics);
+			break;
+		}
+
+		default: // Invalid instruction - abort
+			throw Abort{};
+		}
+
+		++pc;
+	}
+
+	return ReturnCode::Stop;
+}
+
+} // anonymous namespace
+
+ReturnCode interpret(ExecutionContext& _ctx, evm_revision _rev, bool _staticCall, CallFunc _call,
+	ResumePoint const& _resume)
+{
+	return Interpreter{_ctx, _rev, _staticCall, _call, _resume}.run();
+}
+
+}
+}
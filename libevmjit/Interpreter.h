@@ -0,0 +1,42 @@
+#pragma once
+
+#include <evm.h>
+
+#include "JIT.h"
+
+namespace dev
+{
+namespace evmjit
+{
+
+/// The call function used by compiled code, see the `evm.call` symbol.
+using CallFunc = int64_t(*)(evm_context* _ctx, int _kind, int64_t _gas, evm_address const* _address,
+	evm_word const* _value, uint8_t const* _inputData, size_t _inputSize, uint8_t* _outputData,
+	size_t _outputSize, uint8_t const** o_bufData, size_t* o_bufSize);
+
+/// The state of an execution of compiled code continued by the interpreter.
+struct ResumePoint
+{
+	uint64_t pc = 0;
+
+	/// The stack items of 128 bits, the bottom first.
+	void const* stack = nullptr;
+	uint64_t stackSize = 0;
+
+	/// The RETURNDATA buffer.
+	uint8_t const* returnBufData = nullptr;
+	uint64_t returnBufSize = 0;
+};
+
+/// Executes the code of the given context without compiling it.
+///
+/// The interpreter follows the semantics and gas schedule of the compiled
+/// code, so that cold code can be interpreted until it is worth compiling.
+/// The return data, gas left and memory are reported through the context
+/// exactly as compiled code does. Execution starts at the given resume point,
+/// the beginning of the code by default.
+ReturnCode interpret(ExecutionContext& _ctx, evm_revision _rev, bool _staticCall, CallFunc _call,
+	ResumePoint const& _resume = {});
+
+}
+}
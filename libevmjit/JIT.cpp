@@ -1,7 +1,18 @@
 #include "JIT.h"
 
+#include <algorithm>
+#include <array>
+#include <atomic>
 #include <cstddef>
+#include <cstring>
+#include <condition_variable>
+#include <cstdio>
+#include <deque>
+#include <fstream>
+#include <memory>
 #include <mutex>
+#include <thread>
+#include <unordered_set>
 
 #include "preprocessor/llvm_includes_start.h"
 #include <llvm/IR/Module.h>
@@ -16,6 +27,9 @@
 
 #include "Ext.h"
 #include "Compiler.h"
+#include "Dispatch.h"
+#include "Instruction.h"
+#include "Interpreter.h"
 #include "Optimizer.h"
 #include "Cache.h"
 #include "ExecStats.h"
@@ -45,13 +59,175 @@ namespace
 {
 using ExecFunc = ReturnCode(*)(ExecutionContext*);
 
-struct CodeMapEntry
+/// The machine code of a single module. Every module has an engine of its
+/// own, so that its memory can be released on its own. Executions hold a
+/// reference, so evicted code is freed once the last of them returns.
+struct CompiledCode
 {
+    std::unique_ptr<llvm::ExecutionEngine> engine;
     ExecFunc func = nullptr;
-    size_t hits = 0;
 
-    CodeMapEntry() = default;
-    explicit CodeMapEntry(ExecFunc func) : func(func) {}
+    /// Size of the code and data sections in bytes.
+    size_t size = 0;
+
+    /// The EVM code and the time its compilation took in microseconds, kept
+    /// for the profile. Empty for code loaded from the object cache.
+    std::vector<uint8_t> bytecode;
+    uint64_t compileTime = 0;
+
+    /// Number of code map entries holding the code, which is shared by code
+    /// differing only in the metadata. Guarded by JITImpl::x_compile.
+    mutable size_t mappings = 0;
+};
+
+using CodeRef = std::shared_ptr<CompiledCode const>;
+
+/// The region of a key identifying the whole code.
+constexpr uint64_t c_wholeCode = uint64_t(-1);
+
+/// Identifies compiled code by the code hash and the revision the code is
+/// compiled for. The message flags are checked by the code at run time, so
+/// static and non-static calls share it. Code compiled one function at a
+/// time is identified by the selector of the function as the region, see
+/// findRegion().
+struct CodeKey
+{
+    evm_hash hash;
+    evm_revision rev;
+    uint64_t region;
+
+    CodeKey(evm_hash const& _hash, evm_revision _rev, uint64_t _region = c_wholeCode):
+        hash(_hash), rev(_rev), region(_region)
+    {}
+
+    bool operator==(CodeKey const& _other) const
+    {
+        return rev == _other.rev && region == _other.region &&
+            std::memcmp(hash.bytes, _other.hash.bytes, sizeof(hash.bytes)) == 0;
+    }
+};
+
+struct CodeKeyHash
+{
+    size_t operator()(CodeKey const& _key) const
+    {
+        // The code hash is uniformly distributed already.
+        uint64_t h;
+        std::memcpy(&h, _key.hash.bytes, sizeof(h));
+        return static_cast<size_t>(h ^ uint64_t(_key.rev) ^ _key.region);
+    }
+};
+
+/// Executions find the entry under the lock of its code map shard, but read
+/// and update it without holding any lock: the code is accessed with
+/// std::atomic_load and std::atomic_exchange, the rest are atomics updated
+/// with relaxed ordering.
+struct CodeMapEntry
+{
+    CodeRef code;
+    std::atomic<size_t> hits{0};
+
+    /// Value of the use clock at the last execution, orders the entries
+    /// for eviction.
+    std::atomic<uint64_t> lastUse{0};
+
+    /// Whether the code is in its final tier, no longer to be recompiled
+    /// with full optimization. Hits of such code are only sampled.
+    std::atomic<bool> optimized{false};
+
+    /// Whether the code has been queued for recompilation with full
+    /// optimization, so that hot code is queued once rather than on every
+    /// execution. Cleared when quickly compiled code is mapped again.
+    std::atomic<bool> optimizeRequested{false};
+
+    /// Whether the compiled code of code differing only in the metadata has
+    /// been looked up for this entry.
+    std::atomic<bool> sharedChecked{false};
+
+    /// The selector dispatch of the code, found once the code is considered
+    /// for compilation one function at a time. Accessed with
+    /// std::atomic_load and std::atomic_store.
+    std::shared_ptr<std::vector<DispatchEntry> const> dispatch;
+};
+
+using EntryRef = std::shared_ptr<CodeMapEntry>;
+
+/// The code map, split into shards with a lock of their own, so that
+/// executions of different code do not contend. A shard lock is only held
+/// to find an entry.
+class CodeMap
+{
+public:
+    /// Returns the entry of the key, creating it if needed.
+    EntryRef get(CodeKey const& _key)
+    {
+        auto& shard = shardOf(_key);
+        std::lock_guard<std::mutex> lock{shard.x};
+        auto& entry = shard.map[_key];
+        if (!entry)
+        {
+            entry = std::make_shared<CodeMapEntry>();
+            m_size.fetch_add(1, std::memory_order_relaxed);
+        }
+        return entry;
+    }
+
+    EntryRef find(CodeKey const& _key) const
+    {
+        auto& shard = shardOf(_key);
+        std::lock_guard<std::mutex> lock{shard.x};
+        auto it = shard.map.find(_key);
+        return it != shard.map.end() ? it->second : nullptr;
+    }
+
+    /// Removes the entry of the key unless it has been replaced meanwhile.
+    void erase(CodeKey const& _key, EntryRef const& _entry)
+    {
+        auto& shard = shardOf(_key);
+        std::lock_guard<std::mutex> lock{shard.x};
+        auto it = shard.map.find(_key);
+        if (it != shard.map.end() && it->second == _entry)
+        {
+            shard.map.erase(it);
+            m_size.fetch_sub(1, std::memory_order_relaxed);
+        }
+    }
+
+    /// Number of entries in the map.
+    size_t size() const
+    {
+        return m_size.load(std::memory_order_relaxed);
+    }
+
+    /// Returns a snapshot of all the entries.
+    std::vector<std::pair<CodeKey, EntryRef>> entries() const
+    {
+        std::vector<std::pair<CodeKey, EntryRef>> entries;
+        for (auto& shard: m_shards)
+        {
+            std::lock_guard<std::mutex> lock{shard.x};
+            entries.insert(entries.end(), shard.map.begin(), shard.map.end());
+        }
+        return entries;
+    }
+
+private:
+    static constexpr size_t c_numShards = 64;
+
+    struct alignas(64) Shard
+    {
+        std::mutex x;
+        std::unordered_map<CodeKey, EntryRef, CodeKeyHash> map;
+    };
+
+    Shard& shardOf(CodeKey const& _key) const
+    {
+        // Use other bits of the hash than the maps of the shards do.
+        return m_shards[_key.hash.bytes[sizeof(_key.hash.bytes) - 1] % c_numShards];
+    }
+
+    mutable std::array<Shard, c_numShards> m_shards;
+    std::atomic<size_t> m_size{0};
 };
 
 char toChar(evm_revision rev)
@@ -69,23 +245,101 @@ char toChar(evm_revision rev)
 	LLVM_BUILTIN_UNREACHABLE;
 }
 
-/// Combine code hash and EVM revision into a printable code identifier.
-std::string makeCodeId(evm_hash codeHash, evm_revision rev, uint32_t flags)
+/// Combine code hash, EVM revision and region into a printable code identifier.
+std::string makeCodeId(CodeKey const& key)
 {
 	static const auto hexChars = "0123456789abcdef";
 	std::string str;
-	str.reserve(sizeof(codeHash) * 2 + 1);
-	for (auto b: codeHash.bytes)
+	str.reserve(sizeof(key.hash) * 2 + 11);
+	for (auto b: key.hash.bytes)
 	{
 		str.push_back(hexChars[b >> 4]);
 		str.push_back(hexChars[b & 0xf]);
 	}
-	str.push_back(toChar(rev));
-	if (flags & EVM_STATIC)
-		str.push_back('S');
+	str.push_back(toChar(key.rev));
+	if (key.region != c_wholeCode)
+	{
+		str.push_back('.');
+		for (int shift = 32; shift >= 0; shift -= 4)
+			str.push_back(hexChars[(key.region >> shift) & 0xf]);
+	}
 	return str;
 }
 
+/// Returns the size of the code without the Solidity metadata trailer, or the
+/// whole size if there is none. The trailer is a CBOR map followed by its
+/// size in two big-endian bytes. It is only stripped if it cannot affect the
+/// execution: the code before it must end with a terminating instruction and
+/// the trailer must hold no jump destination.
+uint64_t executableSize(byte const* code, uint64_t codeSize)
+{
+	if (codeSize < 2)
+		return codeSize;
+	auto const cborSize = uint64_t{code[codeSize - 2]} << 8 | code[codeSize - 1];
+	if (cborSize == 0 || cborSize + 2 >= codeSize)
+		return codeSize;
+	auto const trailer = codeSize - 2 - cborSize;
+	if ((code[trailer] & 0xe0) != 0xa0)  // CBOR major type 5: map
+		return codeSize;
+
+	byte const c_invalid = 0xfe;
+	bool terminated = false;
+	for (uint64_t pc = 0; pc < codeSize;)
+	{
+		if (pc == trailer && !terminated)
+			return codeSize;
+
+		auto const op = Instruction(code[pc]);
+		if (pc >= trailer && op == Instruction::JUMPDEST)
+			return codeSize;
+		if (pc < trailer)
+			terminated = op == Instruction::STOP || op == Instruction::JUMP || op == Instruction::RETURN ||
+				op == Instruction::REVERT || op == Instruction::SELFDESTRUCT || code[pc] == c_invalid;
+
+		auto const next = pc + 1 + (op >= Instruction::PUSH1 && op <= Instruction::PUSH32 ?
+			static_cast<uint64_t>(op) - static_cast<uint64_t>(Instruction::PUSH1) + 1 : 0);
+		if (pc < trailer && next > trailer)  // PUSH data reaching into the trailer
+			return codeSize;
+		pc = next;
+	}
+	return trailer;
+}
+
+/// Parses a code identifier made by makeCodeId().
+bool parseCodeId(std::string const& id, evm_hash& o_hash, evm_revision& o_rev)
+{
+	if (id.size() != sizeof(o_hash) * 2 + 1)
+		return false;
+
+	auto hexValue = [](char c)
+	{
+		if (c >= '0' && c <= '9')
+			return c - '0';
+		if (c >= 'a' && c <= 'f')
+			return c - 'a' + 10;
+		return -1;
+	};
+	for (size_t i = 0; i < sizeof(o_hash); ++i)
+	{
+		auto hi = hexValue(id[2 * i]);
+		auto lo = hexValue(id[2 * i + 1]);
+		if (hi < 0 || lo < 0)
+			return false;
+		o_hash.bytes[i] = static_cast<uint8_t>(hi << 4 | lo);
+	}
+
+	for (auto rev: {EVM_FRONTIER, EVM_HOMESTEAD, EVM_TANGERINE_WHISTLE, EVM_SPURIOUS_DRAGON, EVM_BYZANTIUM,
+		EVM_AION, EVM_CONSTANTINOPLE})
+	{
+		if (toChar(rev) == id.back())
+		{
+			o_rev = rev;
+			return true;
+		}
+	}
+	return false;
+}
+
 void printVersion()
 {
 	std::cout << "Ethereum EVM JIT Compiler (http://github.com/ethereum/evmjit):\n"
@@ -119,14 +373,142 @@ void parseOptions()
 	cl::ParseEnvironmentOptions("evmjit", "EVMJIT", "Ethereum EVM JIT Compiler");
 }
 
+/// A compilation of a single code key. Every request for the same code
+/// made while the job is pending shares it and waits for its result.
+struct CompileJob
+{
+	CompileJob(CodeKey const& _key, byte const* _code, size_t _codeSize, bool _optimize):
+		key(_key), code(_code, _code + _codeSize), optimize(_optimize)
+	{}
+
+	CodeKey const key;
+	std::vector<byte> const code;
+	bool const optimize;
+
+	/// Set once a thread has taken the job, guarded by JITImpl::x_jobs.
+	bool started = false;
+
+	CodeRef wait()
+	{
+		std::unique_lock<std::mutex> lock{x_done};
+		m_done.wait(lock, [this]{ return m_finished; });
+		return m_code;
+	}
+
+	void finish(CodeRef _code)
+	{
+		std::lock_guard<std::mutex> lock{x_done};
+		m_code = std::move(_code);
+		m_finished = true;
+		m_done.notify_all();
+	}
+
+private:
+	std::mutex x_done;
+	std::condition_variable m_done;
+	bool m_finished = false;
+	CodeRef m_code;
+};
+
+/// The message of the innermost execution running on this thread.
+thread_local evm_message const* t_currentMsg = nullptr;
+
+/// The RETURNDATA buffer of the innermost execution running on this thread.
+thread_local std::vector<uint8_t> t_returnBuffer;
+
+/// Counts the executions of final-tier code on this thread, of which every
+/// c_hitSampling-th is counted.
+thread_local unsigned t_hitTick = 0;
+unsigned const c_hitSampling = 16;
+
+/// The file format of the profile: the header followed by the entries, each
+/// followed by its code.
+char const c_profileMagic[8] = "EVMJITp";
+uint32_t const c_profileVersion = 1;
+uint32_t const c_maxProfileCodeSize = 16 * 1024 * 1024;
+
+struct ProfileHeader
+{
+	char magic[8];
+	uint32_t version;
+	uint32_t count;
+};
+
+struct ProfileEntry
+{
+	evm_hash hash;
+	uint32_t rev;
+	uint32_t codeSize;
+	uint64_t hits;
+	uint64_t compileTime;
+};
+
 class SymbolResolver;
 
+/// The EVM instance. Compiled code is managed per module: code is added to
+/// and evicted from the code map one module at a time, and a module's engine
+/// is destroyed only after the last execution holding it returned. There is
+/// no engine shared by all the code, so nothing ever has to be rebuilt and
+/// executions never wait for in-flight executions to drain.
 class JITImpl: public evm_instance
 {
-	std::unique_ptr<llvm::ExecutionEngine> m_engine;
-	SymbolResolver const* m_memoryMgr = nullptr;
-	mutable std::mutex x_codeMap;
-	std::unordered_map<std::string, CodeMapEntry> m_codeMap;
+	llvm::ObjectCache* m_objectCache = nullptr;
+	CodeMap m_codeMap;
+
+	/// The compiled code by the key of its code without the metadata, so
+	/// that code differing only in the metadata shares it. Guarded by
+	/// x_compile.
+	struct SharedCode
+	{
+		std::weak_ptr<CompiledCode const> code;
+		bool optimized = false;
+	};
+	std::unordered_map<CodeKey, SharedCode, CodeKeyHash> m_sharedCode;
+
+	/// Returns the key of the code without the metadata.
+	static CodeKey sharedKey(CodeKey const& _key, byte const* _code, uint64_t _codeSize);
+
+	/// Minimum number of dispatch entries of code compiled one function at
+	/// a time.
+	static constexpr size_t c_minDispatchSize = 4;
+
+	/// Total size of the code in the map and the use clock, which advances
+	/// with every code added to the map.
+	std::atomic<size_t> m_codeSize{0};
+	std::atomic<uint64_t> m_useClock{0};
+
+	/// The hashes of the code never to be evicted.
+	std::mutex x_pinned;
+	std::unordered_set<std::string> m_pinned;
+
+	/// Held by the thread pruning the code map, the others do not wait.
+	std::mutex x_prune;
+
+	/// Serializes code generation. The LLVM context cannot be used by
+	/// several threads at once.
+	std::mutex x_compile;
+
+	/// Pending compilations by code identifier and the queue of the
+	/// background workers. Jobs are only ever run by one thread: either a
+	/// worker or an execution which needs the code before a worker got to it.
+	std::mutex x_jobs;
+	std::condition_variable m_jobQueued;
+	std::unordered_map<CodeKey, std::shared_ptr<CompileJob>, CodeKeyHash> m_jobs;
+	std::deque<std::shared_ptr<CompileJob>> m_queue;
+	std::vector<std::thread> m_workers;
+	bool m_stopping = false;
+
+	/// The file the profile is saved to and the thread saving it, guarded
+	/// by x_jobs.
+	std::string m_profilePath;
+	std::thread m_profiler;
+	std::condition_variable m_profileWake;
+
+	void profileLoop();
+
+	bool enqueue(CodeKey const& _key, byte const* _code, uint64_t _codeSize, bool _optimize);
+	void compileLoop();
+	void runJob(CompileJob& _job);
 
 	static llvm::LLVMContext& getLLVMContext()
 	{
@@ -136,7 +518,16 @@ class JITImpl: public evm_instance
 		return llvmContext;
 	}
 
-	void resetEngine();
+	std::unique_ptr<llvm::ExecutionEngine> createEngine(std::unique_ptr<llvm::Module> _module,
+		std::unique_ptr<SymbolResolver> _memoryMgr, bool _optimize);
+
+	/// Evicts the least recently used code once the map holds more than
+	/// codeCacheLimit bytes. Requires x_compile to be held.
+	void evictCode();
+
+	/// Drops the least recently used entries without compiled code once the
+	/// map holds more than codeMapLimit entries.
+	void pruneEntries();
 
 public:
 	static JITImpl& instance()
@@ -148,22 +539,130 @@ public:
 	}
 
 	JITImpl();
+	~JITImpl();
+
+	/// Returns the entry of the code and counts the execution.
+	EntryRef getExecFunc(CodeKey const& _key);
+	/// Returns the compiled code, if any. With _optimized set only code in
+	/// its final tier is returned.
+	CodeRef findExecFunc(CodeKey const& _key, bool _optimized = false) const;
+	/// Requires x_compile to be held.
+	void mapExecFunc(CodeKey const& _key, CodeRef _code, bool _optimized);
+	/// Maps and returns the compiled code of code differing only in the
+	/// metadata, such as code preloaded from the object cache, which is
+	/// stored without the metadata. Looked up once per entry.
+	CodeRef findSharedCode(CodeMapEntry& _entry, CodeKey const& _key, byte const* _code, uint64_t _codeSize);
+
+	/// Pins or unpins all compiled variants of the code with the given hash.
+	/// Pinned code is never evicted.
+	void pin(evm_hash const& _codeHash, bool _pinned);
+
+	/// Total size of the compiled code held in bytes.
+	size_t codeSize() const;
+
+	/// Loads the objects of the cache storage with the given number of
+	/// threads and maps their code. Returns the number of objects loaded.
+	size_t preload(size_t _threads);
+
+	/// Returns the key of the region of the code the message calls, or the
+	/// key itself if the code is compiled as a whole. Large code with a
+	/// selector dispatch is compiled one function at a time, until it is hot
+	/// enough to be compiled as a whole with full optimization.
+	CodeKey regionKey(CodeMapEntry& _entry, CodeKey const& _key, byte const* _code, uint64_t _codeSize,
+		evm_message const& _msg) const;
+
+	/// Compiles the code, with full optimization if io_optimize is set. On
+	/// return io_optimize tells whether the code is in its final tier.
+	CodeRef compile(CodeKey const& _key, byte const* _code, uint64_t _codeSize, bool& io_optimize);
+
+	/// Compiles the code unless another thread has done so in the meantime.
+	CodeRef compileOnce(CodeKey const& _key, byte const* _code, uint64_t _codeSize, bool _optimize);
+
+	/// Returns the compiled code, compiling it on the calling thread unless
+	/// a compilation of the same code is already running, which is awaited.
+	CodeRef compileNow(CodeKey const& _key, byte const* _code, uint64_t _codeSize);
+
+	/// Queues the code for compilation by the background workers. Returns
+	/// false if the queue is full.
+	bool compileLater(CodeKey const& _key, byte const* _code, uint64_t _codeSize);
+
+	/// Queues compiled code for recompilation with full optimization, once
+	/// per entry. The request is forgotten if the queue is full.
+	void optimizeLater(CodeMapEntry& _entry, CodeKey const& _key, byte const* _code, uint64_t _codeSize);
+
+	/// Saves the profile of the most executed code periodically to the given
+	/// file, including the code itself.
+	void setProfilePath(std::string const& _path);
+
+	/// Saves the profile now, if a file is set.
+	void saveProfile();
+
+	/// Queues the code of the profile for compilation, the most executed
+	/// first. Returns the number of contracts queued.
+	size_t precompile(std::string const& _path);
+
+	/// Links the stored object of the code identifier.
+	CodeRef loadCode(std::string const& _codeIdentifier, llvm::ObjectCache& _object);
+
+	/// Number of compilations queued or running.
+	size_t pendingCompilations();
 
-	void checkMemorySize();
+	evm_context_fn_table const* host = nullptr;
 
-	llvm::ExecutionEngine& engine() { return *m_engine; }
+	size_t hitThreshold = 0;
 
-	CodeMapEntry getExecFunc(std::string const& _codeIdentifier);
-	void mapExecFunc(std::string const& _codeIdentifier, ExecFunc _funcAddr);
+	/// Number of executions of the code in the interpreter before it is
+	/// promoted to the compiled tier. Zero, the default, disables the
+	/// interpreter.
+	size_t interpretThreshold = 0;
 
-	ExecFunc compile(evm_revision _rev, bool _staticCall, byte const* _code, uint64_t _codeSize, std::string const& _codeIdentifier);
+	/// Number of executions of quickly compiled code before it is recompiled
+	/// with full optimization. Zero disables the optimized tier.
+	size_t optimizeThreshold = 1000;
 
-	evm_context_fn_table const* host = nullptr;
+	/// Maximum size of the compiled code held in bytes.
+	size_t codeCacheLimit = 1000 * 1024 * 1024;
 
-	evm_message const* currentMsg = nullptr;
-	std::vector<uint8_t> returnBuffer;
+	/// Maximum number of entries in the code map. Entries without compiled
+	/// code only count the executions of cold code, and are dropped, the
+	/// least recently used first, once the map holds more.
+	size_t codeMapLimit = 64 * 1024;
 
-	size_t hitThreshold = 0;
+	/// Minimum size of the code compiled one function at a time. Zero
+	/// compiles all code as a whole.
+	size_t regionThreshold = 4096;
+
+	/// Maximum number of background compile workers.
+	size_t compileThreads = 1;
+
+	/// Maximum number of queued background compilations.
+	size_t compileQueueLimit = 1024;
+
+	/// Number of contracts in the profile and the seconds between saves.
+	size_t profileSize = 256;
+	size_t profileInterval = 60;
+};
+
+/// Keeps track of a single execution for its whole lifetime.
+class ExecutionScope
+{
+public:
+	explicit ExecutionScope(evm_message const* _msg):
+		m_prevMsg(t_currentMsg)
+	{
+		t_currentMsg = _msg;
+	}
+
+	~ExecutionScope()
+	{
+		t_currentMsg = m_prevMsg;
+	}
+
+	ExecutionScope(ExecutionScope const&) = delete;
+	ExecutionScope& operator=(ExecutionScope const&) = delete;
+
+private:
+	evm_message const* m_prevMsg;
 };
 
 int64_t call_v2(
@@ -182,16 +681,17 @@ int64_t call_v2(
 {
 	// FIXME: Handle unexpected exceptions.
 	auto& jit = JITImpl::instance();
+	auto currentMsg = t_currentMsg;
 
 	evm_message msg;
 	msg.address = *_address;
-	msg.caller = _kind != EVM_DELEGATECALL ? jit.currentMsg->address : jit.currentMsg->caller;
-	msg.value = _kind != EVM_DELEGATECALL ? *_value : jit.currentMsg->value;
+	msg.caller = _kind != EVM_DELEGATECALL ? currentMsg->address : currentMsg->caller;
+	msg.value = _kind != EVM_DELEGATECALL ? *_value : currentMsg->value;
 	msg.input = _inputData;
 	msg.input_size = _inputSize;
 	msg.gas = _gas;
-	msg.depth = jit.currentMsg->depth + 1;
-	msg.flags = jit.currentMsg->flags;
+	msg.depth = currentMsg->depth + 1;
+	msg.flags = currentMsg->flags;
 	if (_kind == EVM_STATICCALL)
 	{
 		msg.kind = EVM_CALL;
@@ -212,9 +712,9 @@ int64_t call_v2(
 
 	// Update RETURNDATA buffer.
 	// The buffer is already cleared.
-	jit.returnBuffer = {result.output_data, result.output_data + result.output_size};
-	*o_bufData = jit.returnBuffer.data();
-	*o_bufSize = jit.returnBuffer.size();
+	t_returnBuffer = {result.output_data, result.output_data + result.output_size};
+	*o_bufData = t_returnBuffer.data();
+	*o_bufSize = t_returnBuffer.size();
 
 	if (_kind == EVM_CREATE && result.status_code == EVM_SUCCESS)
 		std::copy_n(result.output_data, sizeof(evm_address), _outputData);
@@ -227,6 +727,32 @@ int64_t call_v2(
 	return r;
 }
 
+/// Continues an execution of compiled code in the interpreter, at a basic
+/// block the code was compiled without. See Compiler::resumeBasicBlock().
+ReturnCode resume(
+	ExecutionContext* _ctx,
+	uint64_t _pc,
+	void const* _stack,
+	uint64_t _stackSize,
+	int64_t* io_gas,
+	uint8_t const* _returnBufData,
+	uint64_t _returnBufSize,
+	evm_revision _rev
+)
+{
+	auto& rt = *_ctx->m_data;
+	rt.gas = *io_gas;
+	ResumePoint point;
+	point.pc = _pc;
+	point.stack = _stack;
+	point.stackSize = _stackSize;
+	point.returnBufData = _returnBufData;
+	point.returnBufSize = _returnBufSize;
+	auto const returnCode = interpret(*_ctx, _rev, (rt.flags & EVM_STATIC) != 0, call_v2, point);
+	*io_gas = rt.gas;
+	return returnCode;
+}
+
 
 class SymbolResolver : public llvm::SectionMemoryManager
 {
@@ -237,7 +763,7 @@ class SymbolResolver : public llvm::SectionMemoryManager
 		// Handle symbols' global prefix.
 		// If in current DataLayout global symbols are prefixed, drop the
 		// prefix from the name for local search.
-		char prefix = jit.engine().getDataLayout().getGlobalPrefix();
+		char prefix = m_globalPrefix;
 		llvm::StringRef unprefixedName = (prefix != '\0' && _name[0] == prefix)
 			? llvm::StringRef{_name}.drop_front() : llvm::StringRef{_name};
 
@@ -250,6 +776,7 @@ class SymbolResolver : public llvm::SectionMemoryManager
 			.Case("evm.code", reinterpret_cast<uint64_t>(jit.host->get_code))
 			.Case("evm.selfdestruct", reinterpret_cast<uint64_t>(jit.host->selfdestruct))
 			.Case("evm.call", reinterpret_cast<uint64_t>(call_v2))
+			.Case("evm.resume", reinterpret_cast<uint64_t>(resume))
 			.Case("evm.get_tx_context", reinterpret_cast<uint64_t>(jit.host->get_tx_context))
 			.Case("evm.blockhash", reinterpret_cast<uint64_t>(jit.host->get_block_hash))
 			.Case("evm.log", reinterpret_cast<uint64_t>(jit.host->log))
@@ -267,17 +794,6 @@ class SymbolResolver : public llvm::SectionMemoryManager
 	void reportMemorySize(size_t _addedSize)
 	{
 		m_totalMemorySize += _addedSize;
-
-		if (!g_stats)
-			return;
-
-		if (m_totalMemorySize >= m_printMemoryLimit)
-		{
-			constexpr size_t printMemoryStep = 10 * 1024 * 1024;
-			auto value = double(m_totalMemorySize) / printMemoryStep;
-			std::cerr << "EVMJIT total memory size: " << (10 * value) << " MB\n";
-			m_printMemoryLimit += printMemoryStep;
-		}
 	}
 
 	uint8_t* allocateCodeSection(uintptr_t _size, unsigned _a, unsigned _id,
@@ -294,52 +810,475 @@ class SymbolResolver : public llvm::SectionMemoryManager
 		return llvm::SectionMemoryManager::allocateDataSection(_size, _a, _id, _name, _ro);
 	}
 
+	char m_globalPrefix = '\0';
 	size_t m_totalMemorySize = 0;
-	size_t m_printMemoryLimit = 1024 * 1024;
 
 public:
+	/// Sets the global symbol prefix of the engine's DataLayout.
+	void setGlobalPrefix(char _prefix) { m_globalPrefix = _prefix; }
+
+	/// Size of the sections of the module in bytes.
 	size_t totalMemorySize() const { return m_totalMemorySize; }
 };
 
 
-CodeMapEntry JITImpl::getExecFunc(std::string const& _codeIdentifier)
+EntryRef JITImpl::getExecFunc(CodeKey const& _key)
 {
-    std::lock_guard<std::mutex> lock{x_codeMap};
-    auto& entry = m_codeMap[_codeIdentifier];
-    ++entry.hits;
+    auto entry = m_codeMap.get(_key);
+    if (m_codeMap.size() > codeMapLimit)
+        pruneEntries();
+
+    if (!entry->optimized.load(std::memory_order_relaxed))
+        entry->hits.fetch_add(1, std::memory_order_relaxed);
+    else if (++t_hitTick % c_hitSampling == 0)
+        entry->hits.fetch_add(c_hitSampling, std::memory_order_relaxed);
+
+    // Only write the shared entry when the clock has moved on.
+    auto now = m_useClock.load(std::memory_order_relaxed);
+    if (entry->lastUse.load(std::memory_order_relaxed) != now)
+        entry->lastUse.store(now, std::memory_order_relaxed);
     return entry;
 }
 
-void JITImpl::mapExecFunc(std::string const& _codeIdentifier, ExecFunc _funcAddr)
+CodeRef JITImpl::findExecFunc(CodeKey const& _key, bool _optimized) const
+{
+    auto entry = m_codeMap.find(_key);
+    if (!entry || (_optimized && !entry->optimized))
+        return nullptr;
+    return std::atomic_load(&entry->code);
+}
+
+void JITImpl::mapExecFunc(CodeKey const& _key, CodeRef _code, bool _optimized)
+{
+    auto entry = m_codeMap.get(_key);
+    if (_code->mappings++ == 0)
+        m_codeSize += _code->size;
+    if (auto previous = std::atomic_exchange(&entry->code, std::move(_code)))
+    {
+        if (--previous->mappings == 0)
+            m_codeSize -= previous->size;
+    }
+    entry->optimized = _optimized;
+    if (!_optimized)
+        entry->optimizeRequested = false;
+    entry->lastUse = ++m_useClock;
+    evictCode();
+}
+
+CodeRef JITImpl::findSharedCode(CodeMapEntry& _entry, CodeKey const& _key, byte const* _code, uint64_t _codeSize)
+{
+    if (_entry.sharedChecked.exchange(true, std::memory_order_relaxed))
+        return nullptr;
+
+    auto const sharedKey = JITImpl::sharedKey(_key, _code, _codeSize);
+    if (sharedKey == _key)
+        return nullptr;
+
+    // Do not wait for a compilation to finish, the next execution retries.
+    std::unique_lock<std::mutex> lock{x_compile, std::try_to_lock};
+    if (!lock)
+    {
+        _entry.sharedChecked.store(false, std::memory_order_relaxed);
+        return nullptr;
+    }
+    auto it = m_sharedCode.find(sharedKey);
+    if (it == m_sharedCode.end())
+        return nullptr;
+    auto code = it->second.code.lock();
+    if (code)
+        mapExecFunc(_key, code, it->second.optimized);
+    return code;
+}
+
+void JITImpl::pin(evm_hash const& _codeHash, bool _pinned)
+{
+    std::string hash{reinterpret_cast<char const*>(_codeHash.bytes), sizeof(_codeHash.bytes)};
+    std::lock_guard<std::mutex> lock{x_pinned};
+    if (_pinned)
+        m_pinned.insert(std::move(hash));
+    else
+        m_pinned.erase(hash);
+}
+
+size_t JITImpl::codeSize() const
+{
+    return m_codeSize;
+}
+
+size_t JITImpl::preload(size_t _threads)
+{
+    auto ids = Cache::listObjects();
+    std::atomic<size_t> next{0};
+    std::atomic<size_t> loaded{0};
+    auto load = [&]
+    {
+        for (size_t i; (i = next++) < ids.size();)
+        {
+            evm_hash hash;
+            evm_revision rev;
+            if (!parseCodeId(ids[i], hash, rev))
+                continue;
+            CodeKey const key{hash, rev};
+            if (findExecFunc(key, true))
+                continue;
+
+            // Reading and linking the objects runs in parallel.
+            auto object = Cache::loadObject(ids[i]);
+            auto code = object ? loadCode(ids[i], *object) : nullptr;
+            if (!code)
+                continue;
+
+            std::lock_guard<std::mutex> lock{x_compile};
+            if (!findExecFunc(key, true))
+            {
+                // The objects are stored by the key of the code without the
+                // metadata, which other code may share.
+                m_sharedCode[key] = {code, true};
+                mapExecFunc(key, std::move(code), true);
+                ++loaded;
+            }
+        }
+    };
+
+    std::vector<std::thread> threads;
+    for (size_t i = 1; i < _threads; ++i)
+        threads.emplace_back(load);
+    load();
+    for (auto& thread: threads)
+        thread.join();
+
+    if (g_stats)
+        std::cerr << "EVMJIT preloaded " << loaded << " of " << ids.size() << " modules\n";
+    return loaded;
+}
+
+void JITImpl::evictCode()
+{
+    if (m_codeSize <= codeCacheLimit)
+        return;
+
+    // Evict down to 3/4 of the limit so that not every compilation of a
+    // full cache has to search for the least recently used code.
+    auto const targetSize = codeCacheLimit / 4 * 3;
+
+    struct Candidate
+    {
+        uint64_t lastUse;
+        CodeKey key;
+        EntryRef entry;
+    };
+    std::vector<Candidate> candidates;
+    std::vector<Candidate> idle;
+    {
+        std::lock_guard<std::mutex> lock{x_pinned};
+        for (auto& item: m_codeMap.entries())
+        {
+            auto& entry = item.second;
+            Candidate candidate{entry->lastUse, item.first, entry};
+            if (!std::atomic_load(&entry->code))
+                idle.push_back(std::move(candidate));
+            else if (!m_pinned.count({reinterpret_cast<char const*>(item.first.hash.bytes), sizeof(item.first.hash.bytes)}))
+                candidates.push_back(std::move(candidate));
+        }
+    }
+    std::sort(candidates.begin(), candidates.end(),
+        [](Candidate const& _a, Candidate const& _b) { return _a.lastUse < _b.lastUse; });
+
+    uint64_t evictedUse = 0;
+    size_t evicted = 0;
+    for (auto& candidate: candidates)
+    {
+        if (m_codeSize <= targetSize)
+            break;
+        auto code = std::atomic_exchange(&candidate.entry->code, CodeRef{});
+        if (code && --code->mappings == 0)
+            m_codeSize -= code->size;
+        m_codeMap.erase(candidate.key, candidate.entry);
+        evictedUse = candidate.lastUse;
+        ++evicted;
+    }
+
+    // Forget the hit counts of code not executed since then either.
+    for (auto& candidate: idle)
+    {
+        if (candidate.lastUse <= evictedUse)
+            m_codeMap.erase(candidate.key, candidate.entry);
+    }
+
+    for (auto it = m_sharedCode.begin(); it != m_sharedCode.end();)
+    {
+        if (it->second.code.expired())
+            it = m_sharedCode.erase(it);
+        else
+            ++it;
+    }
+
+    if (g_stats)
+        std::cerr << "EVMJIT evicted " << evicted << " modules, " << m_codeSize / (1024 * 1024) << " MB left\n";
+}
+
+void JITImpl::pruneEntries()
+{
+    std::unique_lock<std::mutex> lock{x_prune, std::try_to_lock};
+    if (!lock || m_codeMap.size() <= codeMapLimit)
+        return;
+
+    // Prune down to 3/4 of the limit so that not every new entry of a full
+    // map has to search for the least recently used ones.
+    auto const targetSize = codeMapLimit / 4 * 3;
+
+    struct Candidate
+    {
+        uint64_t lastUse;
+        size_t hits;
+        CodeKey key;
+        EntryRef entry;
+    };
+    std::vector<Candidate> idle;
+    for (auto& item: m_codeMap.entries())
+    {
+        auto& entry = item.second;
+        if (!std::atomic_load(&entry->code))
+            idle.push_back({entry->lastUse, entry->hits, item.first, entry});
+    }
+
+    // The use clock only advances with compilations, the hits order the
+    // entries last used at the same time.
+    std::sort(idle.begin(), idle.end(), [](Candidate const& _a, Candidate const& _b)
+    {
+        return _a.lastUse != _b.lastUse ? _a.lastUse < _b.lastUse : _a.hits < _b.hits;
+    });
+
+    size_t pruned = 0;
+    for (auto& candidate: idle)
+    {
+        if (m_codeMap.size() <= targetSize)
+            break;
+        m_codeMap.erase(candidate.key, candidate.entry);
+        ++pruned;
+    }
+
+    if (g_stats)
+        std::cerr << "EVMJIT pruned " << pruned << " entries, " << m_codeMap.size() << " left\n";
+}
+
+CodeKey JITImpl::sharedKey(CodeKey const& _key, byte const* _code, uint64_t _codeSize)
+{
+	auto const size = executableSize(_code, _codeSize);
+	if (size == _codeSize)
+		return _key;
+
+	evm_hash hash;
+	keccak(_code, size, hash.bytes);
+	return {hash, _key.rev, _key.region};
+}
+
+CodeKey JITImpl::regionKey(CodeMapEntry& _entry, CodeKey const& _key, byte const* _code, uint64_t _codeSize,
+	evm_message const& _msg) const
+{
+	// Only quickly compiled code is split, the optimized tier replaces it.
+	if (regionThreshold == 0 || _codeSize < regionThreshold || optimizeThreshold == 0 || g_optimize)
+		return _key;
+
+	auto dispatch = std::atomic_load(&_entry.dispatch);
+	if (!dispatch)
+	{
+		dispatch = std::make_shared<std::vector<DispatchEntry>>(findDispatch(_code, _codeSize));
+		std::atomic_store(&_entry.dispatch, dispatch);
+	}
+	if (dispatch->size() < c_minDispatchSize)
+		return _key;
+
+	uint64_t region = c_fallbackRegion;
+	if (_msg.input_size >= 4)
+	{
+		uint32_t const selector = uint32_t{_msg.input[0]} << 24 | uint32_t{_msg.input[1]} << 16 |
+			uint32_t{_msg.input[2]} << 8 | _msg.input[3];
+		for (auto& entry: *dispatch)
+		{
+			if (entry.selector == selector)
+			{
+				region = selector;
+				break;
+			}
+		}
+	}
+	return {_key.hash, _key.rev, region};
+}
+
+CodeRef JITImpl::compileOnce(CodeKey const& _key, byte const* _code, uint64_t _codeSize, bool _optimize)
 {
-    std::lock_guard<std::mutex> lock{x_codeMap};
-    m_codeMap[_codeIdentifier].func = _funcAddr;
+	std::lock_guard<std::mutex> lock{x_compile};
+
+	// Another thread may have compiled the same code while we were waiting.
+	if (auto code = findExecFunc(_key, _optimize))
+		return code;
+
+	// So may have been code differing only in the metadata.
+	auto const sharedKey = JITImpl::sharedKey(_key, _code, _codeSize);
+	auto it = m_sharedCode.find(sharedKey);
+	if (it != m_sharedCode.end() && (it->second.optimized || !_optimize))
+	{
+		bool const optimized = it->second.optimized;
+		if (auto code = it->second.code.lock())
+		{
+			mapExecFunc(_key, code, optimized);
+			return code;
+		}
+	}
+
+	bool optimized = _optimize;
+	auto code = compile(sharedKey, _code, _codeSize, optimized);
+	if (code)
+	{
+		m_sharedCode[sharedKey] = {code, optimized};
+		mapExecFunc(_key, code, optimized);
+	}
+	else if (_optimize)
+	{
+		// Keep running the quickly compiled code rather than retrying.
+		if (auto quickCode = findExecFunc(_key))
+			mapExecFunc(_key, std::move(quickCode), true);
+	}
+	return code;
+}
+
+CodeRef JITImpl::compileNow(CodeKey const& _key, byte const* _code, uint64_t _codeSize)
+{
+	std::shared_ptr<CompileJob> job;
+	bool claimed = false;
+	{
+		std::lock_guard<std::mutex> lock{x_jobs};
+		auto& pending = m_jobs[_key];
+		if (!pending)
+			pending = std::make_shared<CompileJob>(_key, _code, _codeSize, g_optimize);
+		job = pending;
+
+		// Take over a queued job rather than waiting for a worker to get to it.
+		if (!job->started)
+			job->started = claimed = true;
+	}
+
+	if (claimed)
+		runJob(*job);
+	return job->wait();
 }
 
-ExecFunc JITImpl::compile(evm_revision _rev, bool _staticCall, byte const* _code, uint64_t _codeSize,
-	std::string const& _codeIdentifier)
+bool JITImpl::compileLater(CodeKey const& _key, byte const* _code, uint64_t _codeSize)
 {
-	// reset engine.
-	static std::atomic<long> cnt(0);
-	if (++cnt % 20000L == 0) {
-		resetEngine();
+	if (findExecFunc(_key))
+		return true;
+
+	return enqueue(_key, _code, _codeSize, g_optimize);
+}
+
+void JITImpl::optimizeLater(CodeMapEntry& _entry, CodeKey const& _key, byte const* _code, uint64_t _codeSize)
+{
+	if (_entry.optimizeRequested.exchange(true, std::memory_order_relaxed))
+		return;
+
+	if (findExecFunc(_key, true))
+		return;
+
+	if (!enqueue(_key, _code, _codeSize, true))
+		_entry.optimizeRequested.store(false, std::memory_order_relaxed);
+}
+
+bool JITImpl::enqueue(CodeKey const& _key, byte const* _code, uint64_t _codeSize, bool _optimize)
+{
+	std::lock_guard<std::mutex> lock{x_jobs};
+	if (m_jobs.count(_key))
+		return true;
+	if (m_queue.size() >= compileQueueLimit)
+		return false;
+
+	auto job = std::make_shared<CompileJob>(_key, _code, _codeSize, _optimize);
+	m_jobs.emplace(_key, job);
+	m_queue.push_back(std::move(job));
+
+	while (m_workers.size() < compileThreads)
+		m_workers.emplace_back(&JITImpl::compileLoop, this);
+	m_jobQueued.notify_one();
+	return true;
+}
+
+size_t JITImpl::pendingCompilations()
+{
+	std::lock_guard<std::mutex> lock{x_jobs};
+	return m_jobs.size();
+}
+
+void JITImpl::compileLoop()
+{
+	std::unique_lock<std::mutex> lock{x_jobs};
+	while (true)
+	{
+		m_jobQueued.wait(lock, [this]{ return m_stopping || !m_queue.empty(); });
+		if (m_stopping)
+			return;
+
+		auto job = std::move(m_queue.front());
+		m_queue.pop_front();
+		if (job->started)
+			continue;
+		job->started = true;
+
+		lock.unlock();
+		runJob(*job);
+		lock.lock();
+	}
+}
+
+void JITImpl::runJob(CompileJob& _job)
+{
+	CodeRef code;
+	try
+	{
+		code = compileOnce(_job.key, _job.code.data(), _job.code.size(), _job.optimize);
+	}
+	catch (...)
+	{
+		// Reported to the waiters as a failed compilation.
 	}
 
+	{
+		std::lock_guard<std::mutex> lock{x_jobs};
+		m_jobs.erase(_job.key);
+	}
+	_job.finish(std::move(code));
+}
+
+CodeRef JITImpl::compile(CodeKey const& _key, byte const* _code, uint64_t _codeSize, bool& io_optimize)
+{
+	auto const codeIdentifier = makeCodeId(_key);
+
 	clock_t t1 = clock();
-	auto module = Cache::getObject(_codeIdentifier, getLLVMContext());
-	if (!module)
+	// Only code in its final tier is written to the cache, so cached code
+	// needs no further recompilation. A region never is.
+	bool const wholeCode = _key.region == c_wholeCode;
+	bool const optimizeCode = io_optimize;
+	bool const finalTier = (optimizeCode || optimizeThreshold == 0) && wholeCode;
+	auto module = wholeCode ? Cache::getObject(codeIdentifier, getLLVMContext()) : nullptr;
+	if (module)
+		io_optimize = true;
+	else
 	{
 		// TODO: Listener support must be redesigned. These should be a feature of JITImpl
 		//listener->stateChanged(ExecState::Compilation);
 		assert(_code || !_codeSize);
 		//TODO: Can the Compiler be stateless?
-		module = Compiler({}, _rev, _staticCall, getLLVMContext()).compile(_code, _code + _codeSize, _codeIdentifier);
+		std::vector<bool> region;
+		if (!wholeCode)
+			region = findRegion(_code, _codeSize, findDispatch(_code, _codeSize), _key.region);
+		module = Compiler({}, _key.rev, getLLVMContext()).compile(_code, _code + _codeSize, codeIdentifier,
+			wholeCode ? nullptr : &region);
 
-		if (g_optimize)
+		if (optimizeCode)
 		{
 			//listener->stateChanged(ExecState::Optimization);
 			optimize(*module);
 		}
+		io_optimize = finalTier;
 
 		prepare(*module);
 	}
@@ -353,16 +1292,168 @@ ExecFunc JITImpl::compile(evm_revision _rev, bool _staticCall, byte const* _code
 
 	llvm::Module *m = module.get();
 
-	m_engine->addModule(std::move(module));
+	auto memoryMgr = llvm::make_unique<SymbolResolver>();
+	auto& resolver = *memoryMgr;
+	auto code = std::make_shared<CompiledCode>();
+	code->engine = createEngine(std::move(module), std::move(memoryMgr), optimizeCode);
+	code->engine->setObjectCache(io_optimize ? m_objectCache : nullptr);
 	//listener->stateChanged(ExecState::CodeGen);
-	ExecFunc func = (ExecFunc)m_engine->getFunctionAddress(_codeIdentifier);
-	m_engine->removeModule(m);
+	code->func = (ExecFunc)code->engine->getFunctionAddress(codeIdentifier);
+	code->engine->removeModule(m);
+	code->size = resolver.totalMemorySize();
 
 	clock_t t3 = clock();
+	code->bytecode.assign(_code, _code + _codeSize);
+	code->compileTime = static_cast<uint64_t>(t3 - t1) * 1000000 / CLOCKS_PER_SEC;
 	DLOG(jit) << "compile: " << t2 - t1 << " " << t3 - t2 << std::endl;
 
 	delete m;
-	return func;
+	if (!code->func)
+		return nullptr;
+	return code;
+}
+
+void JITImpl::setProfilePath(std::string const& _path)
+{
+	std::lock_guard<std::mutex> lock{x_jobs};
+	m_profilePath = _path;
+	if (!m_profiler.joinable())
+		m_profiler = std::thread{&JITImpl::profileLoop, this};
+}
+
+void JITImpl::profileLoop()
+{
+	std::unique_lock<std::mutex> lock{x_jobs};
+	while (!m_stopping)
+	{
+		m_profileWake.wait_for(lock, std::chrono::seconds{profileInterval});
+		if (m_stopping)
+			break;
+		lock.unlock();
+		saveProfile();
+		lock.lock();
+	}
+}
+
+void JITImpl::saveProfile()
+{
+	std::string path;
+	{
+		std::lock_guard<std::mutex> lock{x_jobs};
+		path = m_profilePath;
+	}
+	if (path.empty())
+		return;
+
+	struct Item
+	{
+		uint64_t hits;
+		CodeKey key;
+		CodeRef code;
+	};
+	std::vector<Item> items;
+	for (auto& item: m_codeMap.entries())
+	{
+		auto code = std::atomic_load(&item.second->code);
+		if (code && !code->bytecode.empty() && item.first.region == c_wholeCode)
+			items.push_back({item.second->hits, item.first, std::move(code)});
+	}
+	std::sort(items.begin(), items.end(), [](Item const& _a, Item const& _b) { return _a.hits > _b.hits; });
+	if (items.size() > profileSize)
+		items.resize(profileSize);
+
+	// Write to a temporary file first, so that a crash never leaves a
+	// partial profile behind.
+	auto tmpPath = path + ".tmp";
+	{
+		std::ofstream file{tmpPath, std::ios::binary | std::ios::trunc};
+		ProfileHeader header;
+		std::memcpy(header.magic, c_profileMagic, sizeof(c_profileMagic));
+		header.version = c_profileVersion;
+		header.count = static_cast<uint32_t>(items.size());
+		file.write(reinterpret_cast<char const*>(&header), sizeof(header));
+		for (auto& item: items)
+		{
+			ProfileEntry entry;
+			entry.hash = item.key.hash;
+			entry.rev = item.key.rev;
+			entry.codeSize = static_cast<uint32_t>(item.code->bytecode.size());
+			entry.hits = item.hits;
+			entry.compileTime = item.code->compileTime;
+			file.write(reinterpret_cast<char const*>(&entry), sizeof(entry));
+			file.write(reinterpret_cast<char const*>(item.code->bytecode.data()), entry.codeSize);
+		}
+		if (!file)
+			return;
+	}
+	std::rename(tmpPath.c_str(), path.c_str());
+}
+
+size_t JITImpl::precompile(std::string const& _path)
+{
+	std::ifstream file{_path, std::ios::binary};
+	ProfileHeader header;
+	if (!file.read(reinterpret_cast<char*>(&header), sizeof(header)) ||
+		std::memcmp(header.magic, c_profileMagic, sizeof(c_profileMagic)) != 0 ||
+		header.version != c_profileVersion)
+		return 0;
+
+	size_t queued = 0;
+	uint64_t compileTime = 0;
+	ProfileEntry entry;
+	std::vector<uint8_t> code;
+	// The entries are stored with the most executed code first.
+	for (uint32_t i = 0; i < header.count && file.read(reinterpret_cast<char*>(&entry), sizeof(entry)); ++i)
+	{
+		if (entry.codeSize > c_maxProfileCodeSize || entry.rev > static_cast<uint32_t>(EVM_CONSTANTINOPLE))
+			break;
+		code.resize(entry.codeSize);
+		if (!file.read(reinterpret_cast<char*>(code.data()), code.size()))
+			break;
+
+		CodeKey const key{entry.hash, static_cast<evm_revision>(entry.rev)};
+		if (findExecFunc(key))
+			continue;
+
+		// Code hot enough to have been optimized is compiled for its final
+		// tier right away.
+		bool const optimize = g_optimize || (optimizeThreshold > 0 && entry.hits >= optimizeThreshold);
+		if (!enqueue(key, code.data(), code.size(), optimize))
+			break;
+		++queued;
+		compileTime += entry.compileTime;
+	}
+
+	if (g_stats)
+		std::cerr << "EVMJIT precompiling " << queued << " modules, " << compileTime / 1000 << " ms\n";
+	return queued;
+}
+
+CodeRef JITImpl::loadCode(std::string const& _codeIdentifier, llvm::ObjectCache& _object)
+{
+	auto memoryMgr = llvm::make_unique<SymbolResolver>();
+	auto& resolver = *memoryMgr;
+	auto code = std::make_shared<CompiledCode>();
+	llvm::Module* m;
+	{
+		// The LLVM context is shared with the compilation.
+		std::lock_guard<std::mutex> lock{x_compile};
+		auto module = Cache::createModule(_codeIdentifier, getLLVMContext());
+		m = module.get();
+		code->engine = createEngine(std::move(module), std::move(memoryMgr), true);
+	}
+	code->engine->setObjectCache(&_object);
+	code->func = (ExecFunc)code->engine->getFunctionAddress(_codeIdentifier);
+	code->engine->removeModule(m);
+	code->engine->setObjectCache(nullptr);
+	code->size = resolver.totalMemorySize();
+	{
+		std::lock_guard<std::mutex> lock{x_compile};
+		delete m;
+	}
+	if (!code->func)
+		return nullptr;
+	return code;
 }
 
 } // anonymous namespace
@@ -410,16 +1501,11 @@ static evm_result execute(evm_instance* instance, evm_context* context, evm_revi
 {
 	auto& jit = *reinterpret_cast<JITImpl*>(instance);
 
-	if (msg->depth == 0)
-		jit.checkMemorySize();
-
 	if (!jit.host)
 		jit.host = context->fn_table;
 	assert(jit.host == context->fn_table);  // Require the fn_table not to change.
 
-	// TODO: Temporary keep track of the current message.
-	evm_message const* prevMsg = jit.currentMsg;
-	jit.currentMsg = msg;
+	ExecutionScope scope{msg};
 
 	RuntimeData rt;
 	rt.code = code;
@@ -431,6 +1517,7 @@ static evm_result execute(evm_instance* instance, evm_context* context, evm_revi
 	std::memcpy(&rt.address, &msg->address, sizeof(msg->address));
 	std::memcpy(&rt.caller, &msg->caller, sizeof(msg->caller));
 	rt.depth = msg->depth;
+	rt.flags = msg->flags;
 
 	ExecutionContext ctx{rt, context};
 
@@ -441,33 +1528,69 @@ static evm_result execute(evm_instance* instance, evm_context* context, evm_revi
 	result.output_size = 0;
 	result.release = nullptr;
 
-    auto codeIdentifier = makeCodeId(msg->code_hash, rev, msg->flags);
-    auto codeEntry = jit.getExecFunc(codeIdentifier);
-    auto func = codeEntry.func;
-    if (!func)
+    CodeKey const key{msg->code_hash, rev};
+    auto codeEntry = jit.getExecFunc(key);
+    auto const hits = codeEntry->hits.load(std::memory_order_relaxed);
+    auto compiled = std::atomic_load(&codeEntry->code);
+    if (!compiled)
+        compiled = jit.findSharedCode(*codeEntry, key, ctx.code(), ctx.codeSize());
+    const bool staticCall = (msg->flags & EVM_STATIC) != 0;
+    bool interpreted = false;
+    if (compiled)
     {
-        //FIXME: We have a race condition here!
-
-        if (codeEntry.hits <= jit.hitThreshold)
+        // Hot code is recompiled with full optimization in the background and
+        // swapped in once ready.
+        if (!codeEntry->optimized.load(std::memory_order_relaxed) && jit.optimizeThreshold > 0 &&
+            hits >= jit.optimizeThreshold)
+            jit.optimizeLater(*codeEntry, key, ctx.code(), ctx.codeSize());
+    }
+    else
+    {
+        if (hits <= jit.hitThreshold)
         {
             result.status_code = EVM_REJECTED;
             return result;
         }
 
-        if (g_stats)
-            std::cerr << "EVMJIT Compile " << codeIdentifier << " (" << codeEntry.hits << ")\n";
+        // Large code is compiled one function at a time, the function called
+        // only on its first call, until the whole code is hot enough to be
+        // optimized.
+        auto const execKey = jit.regionKey(*codeEntry, key, ctx.code(), ctx.codeSize(), *msg);
+        if (!(execKey == key))
+        {
+            compiled = std::atomic_load(&jit.getExecFunc(execKey)->code);
+            if (hits >= jit.optimizeThreshold)
+                jit.optimizeLater(*codeEntry, key, ctx.code(), ctx.codeSize());
+        }
 
-        const bool staticCall = (msg->flags & EVM_STATIC) != 0;
-        func = jit.compile(rev, staticCall, ctx.code(), ctx.codeSize(), codeIdentifier);
-        if (!func)
+        if (!compiled && jit.interpretThreshold > 0)
         {
-            result.status_code = EVM_INTERNAL_ERROR;
-            return result;
+            // Cold code is interpreted. Hot code is queued for compilation and
+            // interpreted until the background compilation is done.
+            bool queued = false;
+            if (hits >= jit.interpretThreshold)
+            {
+                queued = jit.compileLater(execKey, ctx.code(), ctx.codeSize());
+                compiled = jit.findExecFunc(execKey);
+            }
+            interpreted = !compiled && (hits < jit.interpretThreshold || queued);
+        }
+
+        if (!compiled && !interpreted)
+        {
+            if (g_stats)
+                std::cerr << "EVMJIT Compile " << makeCodeId(execKey) << " (" << hits << ")\n";
+
+            compiled = jit.compileNow(execKey, ctx.code(), ctx.codeSize());
+            if (!compiled)
+            {
+                result.status_code = EVM_INTERNAL_ERROR;
+                return result;
+            }
         }
-        jit.mapExecFunc(codeIdentifier, func);
     }
 
-    auto returnCode = func(&ctx);
+    auto returnCode = interpreted ? interpret(ctx, rev, staticCall, call_v2) : compiled->func(&ctx);
 
 	if (returnCode == ReturnCode::Revert)
 	{
@@ -506,7 +1629,6 @@ static evm_result execute(evm_instance* instance, evm_context* context, evm_revi
 		ctx.m_memData = nullptr;
 	}
 
-	jit.currentMsg = prevMsg;
 	return result;
 }
 
@@ -520,6 +1642,81 @@ static int set_option(evm_instance* instance, const char* name, const char* valu
             jit.hitThreshold = std::stoul(value);
             return 1;
         }
+        if (name == std::string{"interpret-threshold"})
+        {
+            auto& jit = static_cast<JITImpl&>(*instance);
+            jit.interpretThreshold = std::stoul(value);
+            return 1;
+        }
+        if (name == std::string{"optimize-threshold"})
+        {
+            auto& jit = static_cast<JITImpl&>(*instance);
+            jit.optimizeThreshold = std::stoul(value);
+            return 1;
+        }
+        if (name == std::string{"region-threshold"})
+        {
+            auto& jit = static_cast<JITImpl&>(*instance);
+            jit.regionThreshold = std::stoul(value);
+            return 1;
+        }
+        if (name == std::string{"code-cache-size"})
+        {
+            auto& jit = static_cast<JITImpl&>(*instance);
+            jit.codeCacheLimit = std::stoull(value);
+            return 1;
+        }
+        if (name == std::string{"code-map-size"})
+        {
+            auto& jit = static_cast<JITImpl&>(*instance);
+            jit.codeMapLimit = std::stoull(value);
+            return 1;
+        }
+        if (name == std::string{"cache"})
+        {
+            Cache::setMode(std::stoul(value) ? CacheMode::on : CacheMode::off);
+            return 1;
+        }
+        if (name == std::string{"cache-dir"})
+        {
+            Cache::setDirectory(value);
+            return 1;
+        }
+        if (name == std::string{"cache-size"})
+        {
+            Cache::setSizeLimit(std::stoull(value));
+            return 1;
+        }
+        if (name == std::string{"profile"})
+        {
+            auto& jit = static_cast<JITImpl&>(*instance);
+            jit.setProfilePath(value);
+            return 1;
+        }
+        if (name == std::string{"profile-size"})
+        {
+            auto& jit = static_cast<JITImpl&>(*instance);
+            jit.profileSize = std::stoul(value);
+            return 1;
+        }
+        if (name == std::string{"profile-interval"})
+        {
+            auto& jit = static_cast<JITImpl&>(*instance);
+            jit.profileInterval = std::max<size_t>(1, std::stoul(value));
+            return 1;
+        }
+        if (name == std::string{"compile-threads"})
+        {
+            auto& jit = static_cast<JITImpl&>(*instance);
+            jit.compileThreads = std::max<size_t>(1, std::stoul(value));
+            return 1;
+        }
+        if (name == std::string{"compile-queue"})
+        {
+            auto& jit = static_cast<JITImpl&>(*instance);
+            jit.compileQueueLimit = std::stoul(value);
+            return 1;
+        }
         return 0;
     }
     catch (...)
@@ -528,40 +1725,101 @@ static int set_option(evm_instance* instance, const char* name, const char* valu
     }
 }
 
-}  // extern "C"
+EXPORT int evmjit_compile(evm_instance* instance, evm_context_fn_table const* host, evm_revision rev,
+	uint32_t flags, evm_hash const* code_hash, uint8_t const* code, size_t code_size)
+{
+	auto& jit = *reinterpret_cast<JITImpl*>(instance);
+
+	if (!jit.host)
+		jit.host = host;
+	assert(jit.host == host);  // Require the fn_table not to change.
+
+	(void)flags;  // The compiled code serves any flags.
+	return jit.compileLater({*code_hash, rev}, code, code_size);
+}
+
+EXPORT size_t evmjit_pending_compilations(evm_instance* instance)
+{
+	return reinterpret_cast<JITImpl*>(instance)->pendingCompilations();
+}
+
+EXPORT void evmjit_pin(evm_instance* instance, evm_hash const* code_hash, int pinned)
+{
+	reinterpret_cast<JITImpl*>(instance)->pin(*code_hash, pinned != 0);
+}
+
+EXPORT int evmjit_is_compiled(evm_instance* instance, evm_revision rev, evm_hash const* code_hash)
+{
+	return reinterpret_cast<JITImpl*>(instance)->findExecFunc({*code_hash, rev}) != nullptr;
+}
+
+EXPORT size_t evmjit_code_size(evm_instance* instance)
+{
+	return reinterpret_cast<JITImpl*>(instance)->codeSize();
+}
+
+EXPORT size_t evmjit_precompile(evm_instance* instance, char const* profile_path)
+{
+	return reinterpret_cast<JITImpl*>(instance)->precompile(profile_path);
+}
+
+EXPORT size_t evmjit_preload(evm_instance* instance, size_t threads)
+{
+	return reinterpret_cast<JITImpl*>(instance)->preload(std::max<size_t>(1, threads));
+}
 
-void JITImpl::resetEngine()
+EXPORT int evmjit_get_option(evm_instance* instance, char const* name, uint64_t* o_value)
 {
-	std::lock_guard<std::mutex> lock{x_codeMap};
-	m_codeMap.clear();
-	m_engine.reset();
+	auto& jit = *reinterpret_cast<JITImpl*>(instance);
+	std::string const option{name};
+	if (option == "hits-threshold")
+		*o_value = jit.hitThreshold;
+	else if (option == "interpret-threshold")
+		*o_value = jit.interpretThreshold;
+	else if (option == "optimize-threshold")
+		*o_value = jit.optimizeThreshold;
+	else if (option == "region-threshold")
+		*o_value = jit.regionThreshold;
+	else if (option == "code-cache-size")
+		*o_value = jit.codeCacheLimit;
+	else if (option == "code-map-size")
+		*o_value = jit.codeMapLimit;
+	else if (option == "profile-size")
+		*o_value = jit.profileSize;
+	else if (option == "profile-interval")
+		*o_value = jit.profileInterval;
+	else if (option == "compile-threads")
+		*o_value = jit.compileThreads;
+	else if (option == "compile-queue")
+		*o_value = jit.compileQueueLimit;
+	else
+		return 0;
+	return 1;
+}
 
-	auto module = llvm::make_unique<llvm::Module>("", getLLVMContext());
+}  // extern "C"
 
+std::unique_ptr<llvm::ExecutionEngine> JITImpl::createEngine(std::unique_ptr<llvm::Module> _module,
+	std::unique_ptr<SymbolResolver> _memoryMgr, bool _optimize)
+{
 	// FIXME: LLVM 3.7: test on Windows
 	auto triple = llvm::Triple(llvm::sys::getProcessTriple());
 	if (triple.getOS() == llvm::Triple::OSType::Win32)
 		triple.setObjectFormat(llvm::Triple::ObjectFormatType::ELF);  // MCJIT does not support COFF format
-	module->setTargetTriple(triple.str());
+	_module->setTargetTriple(triple.str());
 
-	llvm::EngineBuilder builder(std::move(module));
+	auto& memoryMgr = *_memoryMgr;
+	llvm::EngineBuilder builder(std::move(_module));
 	builder.setEngineKind(llvm::EngineKind::JIT);
-	auto memoryMgr = llvm::make_unique<SymbolResolver>();
-	m_memoryMgr = memoryMgr.get();
-	builder.setMCJITMemoryManager(std::move(memoryMgr));
-	builder.setOptLevel(g_optimize ? llvm::CodeGenOpt::Default : llvm::CodeGenOpt::None);
+	builder.setMCJITMemoryManager(std::move(_memoryMgr));
+	builder.setOptLevel(_optimize ? llvm::CodeGenOpt::Default : llvm::CodeGenOpt::None);
 #ifndef NDEBUG
 	builder.setVerifyModules(true);
 #endif
 
-	m_engine.reset(builder.create());
-
-	// TODO: Update cache listener
-	m_engine->setObjectCache(Cache::init(g_cache, nullptr));
-
-	// FIXME: Disabled during API changes
-	//if (preloadCache)
-	//	Cache::preload(*m_engine, funcCache);
+	std::unique_ptr<llvm::ExecutionEngine> engine{builder.create()};
+	memoryMgr.setGlobalPrefix(engine->getDataLayout().getGlobalPrefix());
+	return engine;
 }
 
 JITImpl::JITImpl()
@@ -576,19 +1834,31 @@ JITImpl::JITImpl()
 	llvm::InitializeNativeTarget();
 	llvm::InitializeNativeTargetAsmPrinter();
 
-	resetEngine();
+	// Create the LLVM context first, so that it outlives the engines of the
+	// compiled code.
+	getLLVMContext();
+
+	// TODO: Update cache listener
+	m_objectCache = Cache::init(g_cache, nullptr);
+
+	if (preloadCache)
+		preload(std::max(1u, std::thread::hardware_concurrency()));
 }
 
-void JITImpl::checkMemorySize()
+JITImpl::~JITImpl()
 {
-	constexpr size_t memoryLimit = 1000 * 1024 * 1024;
-
-	if (m_memoryMgr->totalMemorySize() > memoryLimit)
 	{
-		if (g_stats)
-			std::cerr << "EVMJIT reset!\n";
-
-		resetEngine();
+		std::lock_guard<std::mutex> lock{x_jobs};
+		m_stopping = true;
+		m_jobQueued.notify_all();
+		m_profileWake.notify_all();
+	}
+	for (auto& worker: m_workers)
+		worker.join();
+	if (m_profiler.joinable())
+	{
+		m_profiler.join();
+		saveProfile();
 	}
 }
 
@@ -30,12 +30,13 @@ struct RuntimeData
 		Address,
 		Caller,
 		Depth,
+		Flags,  // Message flags, EVM_STATIC forbids state modifications.
 
 		ReturnData 		   = CallData,		///< Return data pointer (set only in case of RETURN)
 		ReturnDataSize 	   = CallDataSize,	///< Return data size (set only in case of RETURN)
 	};
 
-	static size_t const numElements = Depth + 1;
+	static size_t const numElements = Flags + 1;
 
 	int64_t 	gas = 0;
 	int64_t 	gasPrice = 0;
@@ -47,6 +48,7 @@ struct RuntimeData
 	byte        address[32];
 	byte        caller[32];
 	int64_t     depth;
+	uint64_t    flags = 0;
 };
 
 struct JITSchedule
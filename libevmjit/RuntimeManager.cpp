@@ -32,6 +32,7 @@ llvm::StructType* RuntimeManager::getRuntimeDataType()
 			Type::Word256,  // adddress
 			Type::Word256,  // caller
 			Type::Size,     // depth
+			Type::Size,     // flags
 		};
 		type = llvm::StructType::create(elems, "RuntimeData");
 	}
@@ -98,14 +99,13 @@ llvm::Twine getName(RuntimeData::Index _index)
 	case RuntimeData::Address:		return "msg.address";
 	case RuntimeData::Caller:		return "msg.caller";
 	case RuntimeData::Depth:		return "msg.depth";
+	case RuntimeData::Flags:		return "msg.flags";
 	}
 }
 }
 
-RuntimeManager::RuntimeManager(IRBuilder& _builder, code_iterator _codeBegin, code_iterator _codeEnd):
-	CompilerHelper(_builder),
-	m_codeBegin(_codeBegin),
-	m_codeEnd(_codeEnd)
+RuntimeManager::RuntimeManager(IRBuilder& _builder):
+	CompilerHelper(_builder)
 {
 	m_txCtxLoaded = m_builder.CreateAlloca(m_builder.getInt1Ty(), nullptr, "txctx.loaded");
 	m_builder.CreateStore(m_builder.getInt1(false), m_txCtxLoaded);
@@ -236,6 +236,13 @@ llvm::Value* RuntimeManager::getDepth()
 	return m_dataElts[RuntimeData::Depth];
 }
 
+llvm::Value* RuntimeManager::isStaticCall()
+{
+	auto flags = m_dataElts[RuntimeData::Flags];
+	auto staticFlag = m_builder.CreateAnd(flags, m_builder.getInt64(EVM_STATIC));
+	return m_builder.CreateICmpNE(staticFlag, m_builder.getInt64(0), "msg.static");
+}
+
 void RuntimeManager::set(RuntimeData::Index _index, llvm::Value* _value)
 {
 	auto ptr = getPtr(_index);
@@ -256,9 +263,15 @@ void RuntimeManager::registerReturnData(llvm::Value* _offset, llvm::Value* _size
 
 void RuntimeManager::exit(ReturnCode _returnCode)
 {
+	exit(Constant::get(_returnCode));
+}
+
+void RuntimeManager::exit(llvm::Value* _returnCode)
+{
+	assert(_returnCode->getType() == Type::MainReturn);
 	m_builder.CreateBr(m_exitBB);
 	auto retPhi = llvm::cast<llvm::PHINode>(&m_exitBB->front());
-	retPhi->addIncoming(Constant::get(_returnCode), m_builder.GetInsertBlock());
+	retPhi->addIncoming(_returnCode, m_builder.GetInsertBlock());
 }
 
 void RuntimeManager::abort(llvm::Value* _jmpBuf)
@@ -279,16 +292,16 @@ llvm::Value* RuntimeManager::getCallData()
 
 llvm::Value* RuntimeManager::getCode()
 {
-	// OPT Check what is faster
-	//return get(RuntimeData::Code);
-	if (!m_codePtr)
-		m_codePtr = m_builder.CreateGlobalStringPtr({reinterpret_cast<char const*>(m_codeBegin), static_cast<size_t>(m_codeEnd - m_codeBegin)}, "code");
-	return m_codePtr;
+	// Read from the runtime data rather than embedded, so that code differing
+	// only in the metadata can share the compiled code.
+	return m_dataElts[RuntimeData::Code];
 }
 
 llvm::Value* RuntimeManager::getCodeSize()
 {
-	return Constant::get(m_codeEnd - m_codeBegin);
+	auto value = m_dataElts[RuntimeData::CodeSize];
+	assert(value->getType() == Type::Size);
+	return m_builder.CreateZExt(value, Type::Word);
 }
 
 llvm::Value* RuntimeManager::getCallDataSize()
@@ -17,7 +17,7 @@ using namespace evmjit;
 class RuntimeManager: public CompilerHelper
 {
 public:
-	RuntimeManager(IRBuilder& _builder, code_iterator _codeBegin, code_iterator _codeEnd);
+	RuntimeManager(IRBuilder& _builder);
 
 	llvm::Value* getRuntimePtr();
 	llvm::Value* getDataPtr();
@@ -33,6 +33,8 @@ public:
 	llvm::Value* getCodeSize();
 	llvm::Value* getCallDataSize();
 	llvm::Value* getDepth();
+	/// Whether the message is a static call, read from the message flags.
+	llvm::Value* isStaticCall();
 	llvm::Value* getJmpBuf() { return m_jmpBuf; }
 	void setGas(llvm::Value* _gas);
 
@@ -41,6 +43,7 @@ public:
 	void registerReturnData(llvm::Value* _index, llvm::Value* _size); // TODO: Move to Memory.
 
 	void exit(ReturnCode _returnCode);
+	void exit(llvm::Value* _returnCode);
 
 	void abort(llvm::Value* _jmpBuf);
 
@@ -88,10 +91,6 @@ private:
 	llvm::Value* m_stackSize = nullptr;
 
 	llvm::BasicBlock* m_exitBB = nullptr;
-
-	code_iterator m_codeBegin = {};
-	code_iterator m_codeEnd = {};
-	llvm::Value* m_codePtr = nullptr;
 };
 
 }
@@ -52,8 +52,9 @@ import org.apache.commons.lang3.ArrayUtils;
 import org.apache.commons.lang3.tuple.Pair;
 
 /**
- * This class handles all callbacks from the JIT side. It is not thread-safe and should be
- * synchronized for parallel execution.
+ * This class handles all callbacks from the JIT side. The context stack is kept per thread, so
+ * independent transactions may be executed on different threads at the same time; callbacks are
+ * always issued on the thread that started the execution.
  *
  * <p>All methods are static for better JNI performance.
  *
@@ -61,26 +62,63 @@ import org.apache.commons.lang3.tuple.Pair;
  */
 public class Callback {
 
-    private static LinkedList<
-                    Pair<
-                            ExecutionContext,
-                            IRepositoryCache<AccountState, DataWord, IBlockStoreBase<?, ?>>>>
-            stack = new LinkedList<>();
+    private static final ThreadLocal<
+                    LinkedList<
+                            Pair<
+                                    ExecutionContext,
+                                    IRepositoryCache<
+                                            AccountState, DataWord, IBlockStoreBase<?, ?>>>>>
+            stack = ThreadLocal.withInitial(LinkedList::new);
+
+    /** Size of a storage row in the scratch buffer: an address, a key and a value. */
+    static final int STORAGE_ROW_SIZE = Address.ADDRESS_LEN + 2 * DataWord.BYTES;
+
+    /** Size of the scratch buffer, in storage rows. */
+    private static final int SCRATCH_ROWS = 64;
+
+    /**
+     * The scratch buffer of each thread, through which the native side passes the arguments and
+     * results of the frequent callbacks in place. Native code keeps pointing at it, so it lives
+     * as long as the thread.
+     */
+    private static final ThreadLocal<ByteBuffer> scratch =
+            ThreadLocal.withInitial(
+                    () ->
+                            ByteBuffer.allocateDirect(SCRATCH_ROWS * STORAGE_ROW_SIZE)
+                                    .order(ByteOrder.BIG_ENDIAN));
 
     /**
-     * Pushes a pair of context and repository into the callback stack.
+     * The key and value holders of each thread, into which storage words are read from the
+     * scratch buffer. DataWord copies its input, so the holders are reused. The Address and
+     * DataWord objects themselves are still created per call: Address wraps the array it is
+     * given, and the repository caches keep both as map keys when they load an entry.
+     */
+    private static final ThreadLocal<byte[][]> words =
+            ThreadLocal.withInitial(() -> new byte[2][DataWord.BYTES]);
+
+    /**
+     * Pushes a pair of context and repository into the callback stack of the current thread.
      *
      * @param pair
      */
     public static void push(
             Pair<ExecutionContext, IRepositoryCache<AccountState, DataWord, IBlockStoreBase<?, ?>>>
                     pair) {
-        stack.push(pair);
+        stack.get().push(pair);
     }
 
     /** Pops the last <context, repository> pair */
     public static void pop() {
-        stack.pop();
+        stack.get().pop();
+    }
+
+    /**
+     * Returns the number of pairs in the callback stack of the current thread.
+     *
+     * @return
+     */
+    static int depth() {
+        return stack.get().size();
     }
 
     /**
@@ -89,7 +127,7 @@ public class Callback {
      * @return
      */
     public static ExecutionContext context() {
-        return stack.peek().getLeft();
+        return stack.get().peek().getLeft();
     }
 
     /**
@@ -98,7 +136,7 @@ public class Callback {
      * @return
      */
     public static IRepositoryCache<AccountState, DataWord, IBlockStoreBase<?, ?>> repo() {
-        return stack.peek().getRight();
+        return stack.get().peek().getRight();
     }
 
     /**
@@ -123,6 +161,49 @@ public class Callback {
         return code == null ? new byte[0] : code;
     }
 
+    /**
+     * Returns the native handle of the code of a contract. The handle carries a reference to the
+     * registered code, which is released by the native side.
+     *
+     * @param address
+     * @return
+     */
+    public static long getCodeHandle(byte[] address) {
+        return CodeRegistry.acquire(getCode(address));
+    }
+
+    /**
+     * Returns the code size of a contract, without registering the code. The size is measured on
+     * the code of the current repository: the code hash of the account state is not kept in sync
+     * with the code by every repository, so it cannot key the size. The native side caches the
+     * size for the rest of the call frame.
+     *
+     * @param address
+     * @return
+     */
+    public static int getCodeSize(byte[] address) {
+        byte[] code = repo().getCode(Address.wrap(address));
+        return code == null ? 0 : code.length;
+    }
+
+    /**
+     * Returns the code size of the contract at the beginning of the scratch buffer.
+     *
+     * @return
+     */
+    public static int getCodeSizeInScratch() {
+        return getCodeSize(readScratch(scratch.get(), 0, Address.ADDRESS_LEN));
+    }
+
+    /**
+     * Returns the scratch buffer of the current thread.
+     *
+     * @return
+     */
+    public static ByteBuffer scratch() {
+        return scratch.get();
+    }
+
     /**
      * Returns the balance of an account.
      *
@@ -144,6 +225,25 @@ public class Callback {
         return repo().hasAccountState(Address.wrap(address));
     }
 
+    /**
+     * Replaces the address at the beginning of the scratch buffer by the balance of its account.
+     */
+    public static void getBalanceInScratch() {
+        ByteBuffer buf = scratch.get();
+        Address address = Address.wrap(readScratch(buf, 0, Address.ADDRESS_LEN));
+        BigInteger balance = repo().getBalance(address);
+        writeScratch(buf, balance == null ? BigInteger.ZERO : balance);
+    }
+
+    /**
+     * Returns whether the account at the beginning of the scratch buffer exists.
+     *
+     * @return
+     */
+    public static boolean existsInScratch() {
+        return exists(readScratch(scratch.get(), 0, Address.ADDRESS_LEN));
+    }
+
     /**
      * Returns the value that is mapped to the given key.
      *
@@ -176,6 +276,65 @@ public class Callback {
         repo().addStorageRow(Address.wrap(address), new DataWord(key), new DataWord(value));
     }
 
+    /**
+     * Replaces the address and key at the beginning of the scratch buffer by the value that is
+     * mapped to the key.
+     */
+    public static void getStorageInScratch() {
+        ByteBuffer buf = scratch.get();
+        byte[] address = readScratch(buf, 0, Address.ADDRESS_LEN);
+        byte[] key = readScratch(buf, Address.ADDRESS_LEN, words.get()[0]);
+        writeScratch(buf, getStorage(address, key));
+    }
+
+    /**
+     * Sets the values of the storage written by an execution, given as rows in the scratch
+     * buffer, each row being an address followed by a key and a value.
+     *
+     * @param rows
+     */
+    public static void putStorageInScratch(int rows) {
+        ByteBuffer buf = scratch.get();
+        byte[][] holders = words.get();
+        for (int i = 0; i < rows; i++) {
+            int offset = i * STORAGE_ROW_SIZE;
+            int key = offset + Address.ADDRESS_LEN;
+            int value = key + DataWord.BYTES;
+            repo().addStorageRow(
+                    Address.wrap(readScratch(buf, offset, Address.ADDRESS_LEN)),
+                    new DataWord(readScratch(buf, key, holders[0])),
+                    new DataWord(readScratch(buf, value, holders[1])));
+        }
+    }
+
+    private static byte[] readScratch(ByteBuffer buf, int offset, int length) {
+        return readScratch(buf, offset, new byte[length]);
+    }
+
+    private static byte[] readScratch(ByteBuffer buf, int offset, byte[] bytes) {
+        buf.clear();
+        buf.position(offset);
+        buf.get(bytes);
+        return bytes;
+    }
+
+    private static void writeScratch(ByteBuffer buf, byte[] bytes) {
+        buf.clear();
+        buf.put(bytes);
+    }
+
+    /** Writes the value as a big-endian word, without going through a DataWord. */
+    private static void writeScratch(ByteBuffer buf, BigInteger value) {
+        byte[] bytes = value.toByteArray();
+        // the sign byte of a value using the whole word is dropped
+        int skip = Math.max(bytes.length - DataWord.BYTES, 0);
+        buf.clear();
+        for (int i = bytes.length - skip; i < DataWord.BYTES; i++) {
+            buf.put((byte) 0);
+        }
+        buf.put(bytes, skip, bytes.length - skip);
+    }
+
     /**
      * Processes SELFDESTRUCT opcode.
      *
@@ -314,15 +473,21 @@ public class Callback {
         if (pc != null) {
             result = pc.execute(ctx.callData(), ctx.nrgLimit());
         } else {
-            // get the code
-            byte[] code =
-                    track.hasAccountState(codeAddress)
-                            ? track.getCode(codeAddress)
-                            : ByteUtil.EMPTY_BYTE_ARRAY;
+            // get the code and the hash the repository keeps for it
+            byte[] code = ByteUtil.EMPTY_BYTE_ARRAY;
+            byte[] codeHash = null;
+            if (track.hasAccountState(codeAddress)) {
+                code = track.getCode(codeAddress);
+                codeHash = track.getAccountState(codeAddress).getCodeHash();
+                if (Arrays.equals(codeHash, HashUtil.EMPTY_DATA_HASH)) {
+                    // the code was stored without its hash, look it up by content
+                    codeHash = null;
+                }
+            }
 
             // execute transaction
             if (ArrayUtils.isNotEmpty(code)) {
-                result = jit.run(code, ctx, track);
+                result = jit.run(code, codeHash, ctx, track);
             }
         }
 
@@ -0,0 +1,235 @@
+/*
+ * Copyright (c) 2017-2018 Aion foundation.
+ *
+ *     This file is part of the aion network project.
+ *
+ *     The aion network project is free software: you can redistribute it
+ *     and/or modify it under the terms of the GNU General Public License
+ *     as published by the Free Software Foundation, either version 3 of
+ *     the License, or any later version.
+ *
+ *     The aion network project is distributed in the hope that it will
+ *     be useful, but WITHOUT ANY WARRANTY; without even the implied
+ *     warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *     See the GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with the aion network project source files.
+ *     If not, see <https://www.gnu.org/licenses/>.
+ *
+ * Contributors:
+ *     Aion foundation.
+ */
+package org.aion.fastvm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Registry of contract code copied to native memory. Each distinct code is copied and hashed
+ * once; later executions and code callbacks refer to it by handle, so hot contracts are never
+ * marshalled through JNI again.
+ *
+ * <p>Code is looked up by its code hash when the caller knows it, e.g. from the account state,
+ * and by its content otherwise. Lookups take no lock shared by all threads: the entries live in a
+ * concurrent map and only the entry being acquired is locked, to keep it from being evicted
+ * meanwhile.
+ *
+ * <p>Native code entries are reference counted. The registry owns one reference of each entry
+ * and every handle returned by {@link #acquire(byte[], byte[])} carries another one, which is
+ * dropped by the native side once the execution or callback is done with it. The least recently
+ * used entries are evicted when the registry exceeds its byte budget.
+ */
+final class CodeRegistry {
+
+    /** Budget for the registered code, in bytes. */
+    private static volatile long capacity = 64L * 1024 * 1024;
+
+    private static final AtomicLong size = new AtomicLong();
+
+    /** Advances with every acquisition, orders the entries for eviction. */
+    private static final AtomicLong clock = new AtomicLong();
+
+    private static final ConcurrentHashMap<Key, Entry> entries = new ConcurrentHashMap<>(1024);
+
+    /** Held by the thread evicting entries; others do not wait for it. */
+    private static final ReentrantLock evicting = new ReentrantLock();
+
+    private CodeRegistry() {}
+
+    /**
+     * Returns the native handle of the given code, registering the code if necessary. The
+     * returned handle carries a reference which the caller must hand over to native code.
+     *
+     * @param code contract code
+     * @return handle
+     */
+    static long acquire(byte[] code) {
+        return acquire(code, null);
+    }
+
+    /**
+     * Returns the native handle of the given code, registering the code if necessary. The
+     * returned handle carries a reference which the caller must hand over to native code.
+     *
+     * @param code contract code
+     * @param codeHash the 32-byte hash identifying the code, or null to look the code up by its
+     *     content
+     * @return handle
+     */
+    static long acquire(byte[] code, byte[] codeHash) {
+        Key key = codeHash != null ? new Key(codeHash, true) : new Key(code, false);
+        while (true) {
+            Entry entry = entries.get(key);
+            if (entry == null) {
+                Entry created = new Entry(FastVM.registerCode(code), code.length);
+                entry = entries.putIfAbsent(key.copy(), created);
+                if (entry == null) {
+                    entry = created;
+                    size.addAndGet(created.size);
+                    evict(created);
+                } else {
+                    FastVM.releaseCode(created.handle);
+                }
+            }
+
+            // an entry evicted meanwhile is registered again
+            if (entry.retain()) {
+                return entry.handle;
+            }
+        }
+    }
+
+    /**
+     * Sets the byte budget of the registry, evicting entries if necessary.
+     *
+     * @param bytes the maximum size of the registered code
+     */
+    static void setCapacity(long bytes) {
+        capacity = bytes;
+        evict(null);
+    }
+
+    /** Drops the registry references of all entries. */
+    static void clear() {
+        evicting.lock();
+        try {
+            for (Map.Entry<Key, Entry> item : entries.entrySet()) {
+                remove(item.getKey(), item.getValue());
+            }
+        } finally {
+            evicting.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of registered codes.
+     *
+     * @return count
+     */
+    static int count() {
+        return entries.size();
+    }
+
+    /** Evicts the least recently used entries other than the given one until within budget. */
+    private static void evict(Entry keep) {
+        if (size.get() <= capacity || !evicting.tryLock()) {
+            return;
+        }
+        try {
+            List<Map.Entry<Key, Entry>> candidates = new ArrayList<>(entries.entrySet());
+            candidates.sort(Comparator.comparingLong(item -> item.getValue().lastUse));
+            for (Map.Entry<Key, Entry> item : candidates) {
+                if (size.get() <= capacity) {
+                    break;
+                }
+                if (item.getValue() != keep) {
+                    remove(item.getKey(), item.getValue());
+                }
+            }
+        } finally {
+            evicting.unlock();
+        }
+    }
+
+    private static void remove(Key key, Entry entry) {
+        if (entries.remove(key, entry)) {
+            size.addAndGet(-entry.size);
+            entry.release();
+        }
+    }
+
+    /** The code or code hash an entry is registered by, with its Java hash computed once. */
+    private static final class Key {
+        private final byte[] bytes;
+        private final boolean isHash;
+        private final int hash;
+
+        Key(byte[] bytes, boolean isHash) {
+            this(bytes, isHash, Arrays.hashCode(bytes) ^ (isHash ? 1 : 0));
+        }
+
+        private Key(byte[] bytes, boolean isHash, int hash) {
+            this.bytes = bytes;
+            this.isHash = isHash;
+            this.hash = hash;
+        }
+
+        /**
+         * Returns a key over a private copy of the bytes, so that a caller modifying its array
+         * afterwards cannot corrupt the map.
+         */
+        Key copy() {
+            return new Key(bytes.clone(), isHash, hash);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) other;
+            return hash == key.hash && isHash == key.isHash && Arrays.equals(bytes, key.bytes);
+        }
+    }
+
+    /** A registered code and the registry reference to it. */
+    private static final class Entry {
+        private final long handle;
+        private final long size;
+        private volatile long lastUse = clock.incrementAndGet();
+        private boolean released;
+
+        Entry(long handle, long size) {
+            this.handle = handle;
+            this.size = size;
+        }
+
+        /** Adds a reference for the caller, unless the entry has been evicted. */
+        synchronized boolean retain() {
+            if (released) {
+                return false;
+            }
+            FastVM.retainCode(handle);
+            lastUse = clock.incrementAndGet();
+            return true;
+        }
+
+        /** Drops the registry reference. */
+        synchronized void release() {
+            released = true;
+            FastVM.releaseCode(handle);
+        }
+    }
+}
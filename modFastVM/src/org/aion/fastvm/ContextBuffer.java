@@ -0,0 +1,168 @@
+/*
+ * Copyright (c) 2017-2018 Aion foundation.
+ *
+ *     This file is part of the aion network project.
+ *
+ *     The aion network project is free software: you can redistribute it
+ *     and/or modify it under the terms of the GNU General Public License
+ *     as published by the Free Software Foundation, either version 3 of
+ *     the License, or any later version.
+ *
+ *     The aion network project is distributed in the hope that it will
+ *     be useful, but WITHOUT ANY WARRANTY; without even the implied
+ *     warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *     See the GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with the aion network project source files.
+ *     If not, see <https://www.gnu.org/licenses/>.
+ *
+ * Contributors:
+ *     Aion foundation.
+ */
+package org.aion.fastvm;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import org.aion.base.type.Address;
+import org.aion.mcf.vm.types.DataWord;
+import org.aion.vm.ExecutionContext;
+
+/**
+ * A direct buffer holding an encoded execution context, laid out exactly as the native
+ * <code>parse_context</code> reads it, i.e. the same encoding as {@link ExecutionContext#toBytes()}.
+ * The native side reads the buffer in place, without copying it.
+ *
+ * <p>Buffers are recycled per thread. Every execution, including a nested one, acquires its own
+ * buffer because the native side keeps pointing into it (e.g. at the call data) until the
+ * execution finishes.
+ */
+final class ContextBuffer {
+
+    /** Offset of the call data length, everything before it has a fixed size. */
+    static final int CALL_DATA_OFFSET =
+            3 * Address.ADDRESS_LEN + DataWord.BYTES + Long.BYTES + DataWord.BYTES;
+
+    /** Size of the fields following the call data. */
+    static final int TAIL_SIZE =
+            3 * Integer.BYTES + Address.ADDRESS_LEN + 3 * Long.BYTES + DataWord.BYTES;
+
+    private static final int INITIAL_CAPACITY = 4096;
+
+    /** The free buffers of each thread, linked through {@link #next}. */
+    private static final ThreadLocal<ContextBuffer> free = new ThreadLocal<>();
+
+    private ByteBuffer buffer = allocate(INITIAL_CAPACITY);
+    private final byte[] tail = new byte[TAIL_SIZE];
+    private ContextBuffer next;
+
+    private ContextBuffer() {}
+
+    /**
+     * Returns a buffer owned by the calling thread until {@link #release()} is called.
+     *
+     * @return buffer
+     */
+    static ContextBuffer acquire() {
+        ContextBuffer buf = free.get();
+        if (buf == null) {
+            return new ContextBuffer();
+        }
+        free.set(buf.next);
+        buf.next = null;
+        return buf;
+    }
+
+    /** Returns this buffer to the pool of the calling thread. */
+    void release() {
+        next = free.get();
+        free.set(this);
+    }
+
+    /**
+     * Returns the underlying direct buffer.
+     *
+     * @return buffer
+     */
+    ByteBuffer buffer() {
+        return buffer;
+    }
+
+    /**
+     * Encodes the given execution context.
+     *
+     * @param ctx execution context
+     * @return this buffer
+     */
+    ContextBuffer write(ExecutionContext ctx) {
+        byte[] callData = ctx.callData();
+        ensureCapacity(CALL_DATA_OFFSET + Integer.BYTES + callData.length + TAIL_SIZE);
+
+        buffer.clear();
+        buffer.put(ctx.address().toBytes());
+        buffer.put(ctx.origin().toBytes());
+        buffer.put(ctx.sender().toBytes());
+        buffer.put(ctx.nrgPrice().getData());
+        buffer.putLong(ctx.nrgLimit());
+        buffer.put(ctx.callValue().getData());
+        buffer.putInt(callData.length);
+        buffer.put(callData);
+
+        buffer.putInt(ctx.depth());
+        buffer.putInt(ctx.kind());
+        buffer.putInt(ctx.flags());
+        buffer.put(ctx.blockCoinbase().toBytes());
+        buffer.putLong(ctx.blockNumber());
+        buffer.putLong(ctx.blockTimestamp());
+        buffer.putLong(ctx.blockNrgLimit());
+        buffer.put(ctx.blockDifficulty().getData());
+        buffer.flip();
+        return this;
+    }
+
+    /**
+     * Replaces the call data of the encoded context, leaving all other fields untouched. Only
+     * the fields following the call data are moved when its length changes.
+     *
+     * @param callData the new call data
+     * @return this buffer
+     */
+    ContextBuffer setCallData(byte[] callData) {
+        int oldLength = buffer.getInt(CALL_DATA_OFFSET);
+        int tailOffset = CALL_DATA_OFFSET + Integer.BYTES + oldLength;
+
+        if (callData.length != oldLength) {
+            buffer.position(tailOffset);
+            buffer.get(tail);
+            ensureCapacity(CALL_DATA_OFFSET + Integer.BYTES + callData.length + TAIL_SIZE);
+        }
+
+        buffer.clear();
+        buffer.position(CALL_DATA_OFFSET);
+        buffer.putInt(callData.length);
+        buffer.put(callData);
+        if (callData.length != oldLength) {
+            buffer.put(tail);
+        } else {
+            buffer.position(tailOffset + TAIL_SIZE);
+        }
+        buffer.flip();
+        return this;
+    }
+
+    /** Grows the buffer, preserving its content, so that it holds at least the given size. */
+    private void ensureCapacity(int size) {
+        if (buffer.capacity() < size) {
+            ByteBuffer old = buffer;
+            buffer = allocate(Integer.highestOneBit(size - 1) << 1);
+
+            old.clear();
+            buffer.put(old);
+            buffer.clear();
+        }
+    }
+
+    private static ByteBuffer allocate(int capacity) {
+        return ByteBuffer.allocateDirect(capacity).order(ByteOrder.BIG_ENDIAN);
+    }
+}
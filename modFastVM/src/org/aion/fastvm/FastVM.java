@@ -22,11 +22,20 @@
  */
 package org.aion.fastvm;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 import org.aion.base.db.IRepositoryCache;
+import org.aion.base.type.Address;
 import org.aion.base.util.NativeLoader;
+import org.aion.vm.AbstractExecutionResult.ResultCode;
 import org.aion.vm.ExecutionContext;
 import org.aion.vm.ExecutionResult;
 import org.aion.vm.VirtualMachine;
+import org.aion.zero.types.AionTransaction;
 import org.apache.commons.lang3.tuple.Pair;
 
 /**
@@ -45,9 +54,18 @@ public class FastVM implements VirtualMachine {
 
     public static int FLAG_STATIC = 1;
 
+    public static final int CODE_HASH_LENGTH = 32;
+
+    /**
+     * The native VM instance. The jit library has a single instance per process, which any
+     * number of threads may execute on at once, so all executions share this handle.
+     */
+    private static final long instance;
+
     static {
         NativeLoader.loadLibrary("fastvm");
         init();
+        instance = create();
     }
 
     /** Creates a FastVM instance. */
@@ -63,20 +81,533 @@ public class FastVM implements VirtualMachine {
      */
     private static native long create();
 
-    /** Executes the given code and returns the execution results. */
-    private static native byte[] run(long instance, byte[] code, byte[] context, int revision);
+    /**
+     * Executes the given code. The context is read in place from the given direct buffer, and the
+     * code hash is computed natively if not given. The result is written into the result buffer,
+     * or returned encoded if it does not fit.
+     */
+    private static native byte[] run(
+            long instance,
+            byte[] code,
+            byte[] codeHash,
+            ByteBuffer context,
+            ByteBuffer result,
+            int revision);
+
+    /**
+     * Executes the registered code, like {@link #run(long, byte[], byte[], ByteBuffer, ByteBuffer,
+     * int)}. The reference carried by the code handle is released.
+     */
+    private static native byte[] runCode(
+            long instance, long code, ByteBuffer context, ByteBuffer result, int revision);
 
-    /** Destroys the given VM instance. */
-    private static native void destroy(long instance);
+    /**
+     * Executes the given registered codes one after another and returns their results packed in
+     * a single array, each encoded as by {@link ExecutionResult#toBytes()}. The callback stack is
+     * popped and the code handle released after every execution. An exception raised by a
+     * callback stops the batch: the remaining code handles are released, but their contexts are
+     * left on the callback stack for the caller to unwind.
+     */
+    private static native byte[] runBatch(
+            long instance, long[] codes, ByteBuffer[] contexts, int revision);
+
+    /**
+     * Copies the code to native memory and returns its handle, holding one reference.
+     *
+     * @param code contract code
+     * @return handle
+     */
+    static native long registerCode(byte[] code);
+
+    /** Adds a reference to the registered code. */
+    static native void retainCode(long code);
+
+    /** Drops a reference to the registered code, freeing it with the last one. */
+    static native void releaseCode(long code);
+
+    /**
+     * Queues the registered code for compilation in the background. The reference carried by the
+     * code handle is released.
+     *
+     * @return false if the compile queue is full
+     */
+    private static native boolean compile(long instance, long code, int revision, int flags);
+
+    /** Returns the number of compilations queued or running. */
+    private static native int pendingCompilations(long instance);
+
+    /**
+     * Pins or unpins the compiled code of the registered code. The reference carried by the code
+     * handle is released.
+     */
+    private static native void pin(long instance, long code, boolean pinned);
+
+    /**
+     * Returns whether the registered code executes compiled. The reference carried by the code
+     * handle is released.
+     */
+    private static native boolean isCompiled(long instance, long code, int revision);
+
+    /** Returns the total size of the compiled code held, in bytes. */
+    private static native long codeSize(long instance);
+
+    /** Queues the code of the given profile for compilation. */
+    private static native int precompile(long instance, String profile);
+
+    /** Loads the compiled code stored in the object cache. */
+    private static native int preload(long instance, int threads);
+
+    /** Sets an option of the jit library, returning false if it is not supported. */
+    private static native boolean setOption(long instance, String name, String value);
+
+    /** Returns the value of a numeric option of the jit library, or -1 if it is not supported. */
+    private static native long getOption(long instance, String name);
+
+    /**
+     * Sets an option of the jit library.
+     *
+     * @throws IllegalArgumentException if the option or its value is not supported
+     */
+    private static void configure(String name, String value) {
+        if (!setOption(instance, name, value)) {
+            throw new IllegalArgumentException("Invalid value of option " + name + ": " + value);
+        }
+    }
+
+    /** Returns the value of a numeric option of the jit library. */
+    private static long option(String name) {
+        long value = getOption(instance, name);
+        if (value < 0) {
+            throw new IllegalArgumentException("Unknown option " + name);
+        }
+        return value;
+    }
+
+    /**
+     * Sets the maximum amount of contract code, in bytes, kept in native memory for reuse. The
+     * least recently used code is released first.
+     *
+     * @param bytes the budget of the code registry
+     */
+    public static void setCodeRegistryCapacity(long bytes) {
+        CodeRegistry.setCapacity(bytes);
+    }
+
+    /**
+     * Queues the given code for compilation in the background, so that its first execution does
+     * not have to wait for the compiler. Requests for code which is already compiled or queued
+     * are ignored; an execution of code which is still queued compiles it right away.
+     *
+     * @param code contract code
+     * @return false if the compile queue is full and the code was not queued
+     */
+    public static boolean compileAsync(byte[] code) {
+        return compile(instance, CodeRegistry.acquire(code), REVISION_AION, 0);
+    }
+
+    /**
+     * Returns the number of compilations queued or running in the background.
+     *
+     * @return pending compilations
+     */
+    public static int getPendingCompilations() {
+        return pendingCompilations(instance);
+    }
+
+    /**
+     * Prewarms the compiler for a block: queues the code of every contract called by the given
+     * transactions for background compilation, so that the block executes against compiled code.
+     * Call it before executing the block; executions of code which is still queued do not wait
+     * for the compiler unless they need the code compiled.
+     *
+     * @param transactions the transactions of the block
+     * @param repo the repository the block executes against
+     * @return the number of contracts submitted, including those already compiled
+     */
+    public static int prewarm(List<AionTransaction> transactions, IRepositoryCache repo) {
+        Set<Address> targets = new HashSet<>();
+        int submitted = 0;
+        for (AionTransaction tx : transactions) {
+            Address to = tx.getTo();
+            if (tx.isContractCreation() || to == null || !targets.add(to)) {
+                continue;
+            }
+
+            byte[] code = repo.getCode(to);
+            if (code == null || code.length == 0) {
+                continue;
+            }
+            if (!compile(instance, CodeRegistry.acquire(code), REVISION_AION, 0)) {
+                break; // the compile queue is full
+            }
+            submitted++;
+        }
+        return submitted;
+    }
+
+    /**
+     * Sets the maximum number of background compile threads. The pool only grows; threads are
+     * started on demand.
+     *
+     * @param threads the number of threads, at least one
+     */
+    public static void setCompileThreads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Invalid number of compile threads: " + threads);
+        }
+        configure("compile-threads", Integer.toString(threads));
+    }
+
+    /**
+     * Sets the maximum number of compilations waiting in the background queue. Further requests
+     * are rejected until the queue drains.
+     *
+     * @param size the queue size
+     */
+    public static void setCompileQueueSize(int size) {
+        if (size < 0) {
+            throw new IllegalArgumentException("Invalid compile queue size: " + size);
+        }
+        configure("compile-queue", Integer.toString(size));
+    }
+
+    /**
+     * Sets the number of executions after which interpreted code is promoted to the compiled tier.
+     * Cold code is interpreted, avoiding the compilation cost for code which runs only a few
+     * times. Zero, the default, disables the interpreter and compiles all code on its first
+     * execution.
+     *
+     * @param threshold the number of interpreted executions
+     */
+    public static void setInterpreterThreshold(int threshold) {
+        if (threshold < 0) {
+            throw new IllegalArgumentException("Invalid interpreter threshold: " + threshold);
+        }
+        configure("interpret-threshold", Integer.toString(threshold));
+    }
+
+    /**
+     * Returns the number of executions after which interpreted code is compiled.
+     *
+     * @return the interpreter threshold, zero if the interpreter is disabled
+     */
+    public static int getInterpreterThreshold() {
+        return (int) option("interpret-threshold");
+    }
+
+    /**
+     * Sets the number of executions after which quickly compiled code is recompiled with full
+     * optimization in the background. Zero disables the recompilation.
+     *
+     * @param threshold the number of executions
+     */
+    public static void setOptimizeThreshold(int threshold) {
+        if (threshold < 0) {
+            throw new IllegalArgumentException("Invalid optimize threshold: " + threshold);
+        }
+        configure("optimize-threshold", Integer.toString(threshold));
+    }
+
+    /**
+     * Returns the number of executions after which compiled code is optimized.
+     *
+     * @return the optimize threshold, zero if the recompilation is disabled
+     */
+    public static int getOptimizeThreshold() {
+        return (int) option("optimize-threshold");
+    }
+
+    /**
+     * Sets the minimum code size of contracts compiled one function at a time. The functions are
+     * found by the selector dispatch of Solidity code, and each is compiled on its first call
+     * until the contract is hot enough to be optimized as a whole. Zero compiles all code as a
+     * whole.
+     *
+     * @param bytes the minimum code size in bytes
+     */
+    public static void setRegionThreshold(int bytes) {
+        if (bytes < 0) {
+            throw new IllegalArgumentException("Invalid region threshold: " + bytes);
+        }
+        configure("region-threshold", Integer.toString(bytes));
+    }
+
+    /**
+     * Returns the minimum code size of contracts compiled one function at a time.
+     *
+     * @return the region threshold in bytes, zero if all code is compiled as a whole
+     */
+    public static int getRegionThreshold() {
+        return (int) option("region-threshold");
+    }
+
+    /**
+     * Sets the maximum amount of compiled code, in bytes, kept in memory. Once exceeded, the least
+     * recently executed code which is not pinned is evicted and compiled again when needed.
+     *
+     * @param bytes the size limit
+     */
+    public static void setCompiledCodeLimit(long bytes) {
+        if (bytes < 0) {
+            throw new IllegalArgumentException("Invalid compiled code limit: " + bytes);
+        }
+        configure("code-cache-size", Long.toString(bytes));
+    }
+
+    /**
+     * Returns the maximum amount of compiled code kept in memory.
+     *
+     * @return the size limit in bytes
+     */
+    public static long getCompiledCodeLimit() {
+        return option("code-cache-size");
+    }
+
+    /**
+     * Sets the maximum number of contracts the jit library keeps execution counts of. Once
+     * exceeded, the counts of the least recently executed code which is not compiled are dropped,
+     * independently of the compiled code limit.
+     *
+     * @param entries the number of contracts
+     */
+    public static void setCodeMapLimit(long entries) {
+        if (entries < 0) {
+            throw new IllegalArgumentException("Invalid code map limit: " + entries);
+        }
+        configure("code-map-size", Long.toString(entries));
+    }
+
+    /**
+     * Stores the machine code of fully compiled contracts on disk, so that a restarted node loads
+     * it instead of compiling the contracts again. Stored objects are checksummed; corrupted ones
+     * are discarded and compiled again.
+     *
+     * @param directory the cache directory
+     * @param maxBytes the size limit of the cache, the least recently used objects are removed
+     *     first
+     */
+    public static void enableObjectCache(String directory, long maxBytes) {
+        if (maxBytes < 0) {
+            throw new IllegalArgumentException("Invalid object cache size: " + maxBytes);
+        }
+        configure("cache-dir", directory);
+        configure("cache-size", Long.toString(maxBytes));
+        configure("cache", "1");
+    }
+
+    /**
+     * Loads the machine code stored in the object cache, so that the contracts run compiled from
+     * their first execution. Meant to be called at startup, after {@link #enableObjectCache},
+     * before the first block is imported.
+     *
+     * @param threads the number of threads loading the code, at least one
+     * @return the number of contracts loaded
+     */
+    public static int preloadObjectCache(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Invalid number of preload threads: " + threads);
+        }
+        return preload(instance, threads);
+    }
+
+    /**
+     * Periodically saves a profile of the most executed contracts, including their code, hits and
+     * compile time, to the given file. The profile is also saved when the library shuts down.
+     *
+     * @param path the profile file
+     * @param intervalSeconds the seconds between two saves
+     */
+    public static void enableProfile(String path, int intervalSeconds) {
+        if (intervalSeconds < 1) {
+            throw new IllegalArgumentException("Invalid profile interval: " + intervalSeconds);
+        }
+        configure("profile-interval", Integer.toString(intervalSeconds));
+        configure("profile", path);
+    }
+
+    /**
+     * Compiles the contracts of a saved profile in the background, the most executed first, so
+     * that they run compiled soon after startup. Unlike {@link #preloadObjectCache}, this does not
+     * depend on the object cache.
+     *
+     * @param path the profile file
+     * @return the number of contracts queued for compilation
+     */
+    public static int precompileProfile(String path) {
+        return precompile(instance, path);
+    }
+
+    /** Stops loading and storing machine code on disk. The stored objects are kept. */
+    public static void disableObjectCache() {
+        configure("cache", "0");
+    }
+
+    /**
+     * Keeps the compiled code of the given contract in memory, exempt from eviction.
+     *
+     * @param code contract code
+     */
+    public static void pin(byte[] code) {
+        pin(instance, CodeRegistry.acquire(code), true);
+    }
+
+    /**
+     * Makes the compiled code of the given contract subject to eviction again.
+     *
+     * @param code contract code
+     */
+    public static void unpin(byte[] code) {
+        pin(instance, CodeRegistry.acquire(code), false);
+    }
+
+    /**
+     * Returns whether the given contract has compiled code in memory, so that its next execution
+     * is not interpreted or compiled first.
+     *
+     * @param code contract code
+     * @return true if the code executes compiled
+     */
+    public static boolean isCompiled(byte[] code) {
+        return isCompiled(instance, CodeRegistry.acquire(code), REVISION_AION);
+    }
+
+    /**
+     * Returns the total size of the compiled code kept in memory.
+     *
+     * @return the size in bytes
+     */
+    public static long getCompiledCodeSize() {
+        return codeSize(instance);
+    }
 
-    @SuppressWarnings("unchecked")
     public ExecutionResult run(byte[] code, ExecutionContext ctx, IRepositoryCache repo) {
+        return run(code, null, ctx, repo);
+    }
+
+    /**
+     * Executes the given code, using the given hash to look up its registered native copy, or its
+     * compiled version for contract creations, instead of hashing the code. The hash only has to
+     * identify the code uniquely, e.g. the code hash kept in the account state.
+     *
+     * @param code the code to execute
+     * @param codeHash the 32-byte hash of the code, or null to hash the code natively
+     * @param ctx the execution context
+     * @param repo the repository
+     * @return the execution result
+     */
+    public ExecutionResult run(
+            byte[] code, byte[] codeHash, ExecutionContext ctx, IRepositoryCache repo) {
+        if (codeHash != null && codeHash.length != CODE_HASH_LENGTH) {
+            throw new IllegalArgumentException("Invalid code hash length: " + codeHash.length);
+        }
+        return execute(code, codeHash, ctx, repo).toExecutionResult();
+    }
+
+    /**
+     * Executes the given code and returns a view of the result, which avoids copying the output
+     * unless asked to. The view is only valid until the next execution on the calling thread.
+     *
+     * @param code the code to execute
+     * @param ctx the execution context
+     * @param repo the repository
+     * @return the view of the execution result
+     */
+    public ResultView runView(byte[] code, ExecutionContext ctx, IRepositoryCache repo) {
+        return execute(code, null, ctx, repo);
+    }
+
+    @SuppressWarnings("unchecked")
+    private ResultView execute(
+            byte[] code, byte[] codeHash, ExecutionContext ctx, IRepositoryCache repo) {
         Callback.push(Pair.of(ctx, repo));
-        long instance = create();
-        byte[] result = run(instance, code, ctx.toBytes(), REVISION_AION);
-        destroy(instance);
+        ContextBuffer context = ContextBuffer.acquire().write(ctx);
+        ResultView view = ResultView.get();
+        ByteBuffer result = view.buffer();
+        byte[] overflow;
+        if (ctx.kind() != ExecutionContext.CREATE) {
+            // deployed code is registered once and executed from its native copy, found by its
+            // code hash if given
+            long handle = CodeRegistry.acquire(code, codeHash);
+            overflow =
+                    runCode(
+                            instance,
+                            handle,
+                            context.buffer(),
+                            result,
+                            REVISION_AION);
+        } else {
+            overflow =
+                    run(
+                            instance,
+                            code,
+                            codeHash,
+                            context.buffer(),
+                            result,
+                            REVISION_AION);
+        }
+        context.release();
         Callback.pop();
 
-        return ExecutionResult.parse(result);
+        return view.set(result, overflow);
+    }
+
+    /**
+     * Executes a batch of independent (code, context) pairs sequentially against the given
+     * repository, crossing into native code only once for the whole batch.
+     *
+     * @param batch the codes and their execution contexts, in execution order
+     * @param repo the repository
+     * @return the execution results, in the same order as the batch
+     */
+    @SuppressWarnings("unchecked")
+    public List<ExecutionResult> runBatch(
+            List<Pair<byte[], ExecutionContext>> batch, IRepositoryCache repo) {
+        int size = batch.size();
+        long[] codes = new long[size];
+        ContextBuffer[] buffers = new ContextBuffer[size];
+        ByteBuffer[] contexts = new ByteBuffer[size];
+
+        for (int i = 0; i < size; i++) {
+            codes[i] = CodeRegistry.acquire(batch.get(i).getLeft());
+            buffers[i] = ContextBuffer.acquire();
+            contexts[i] = buffers[i].write(batch.get(i).getRight()).buffer();
+        }
+
+        int depth = Callback.depth();
+        byte[] results;
+        try {
+            // the first execution must be on top of the stack; native pops after each one
+            for (int i = size - 1; i >= 0; i--) {
+                Callback.push(Pair.of(batch.get(i).getRight(), repo));
+            }
+            results = runBatch(instance, codes, contexts, REVISION_AION);
+        } finally {
+            // drop the contexts of the executions a failed batch did not reach
+            while (Callback.depth() > depth) {
+                Callback.pop();
+            }
+            for (int i = size - 1; i >= 0; i--) {
+                buffers[i].release();
+            }
+        }
+
+        return parseBatch(results, size);
+    }
+
+    /** Splits the packed results of a batch. */
+    private static List<ExecutionResult> parseBatch(byte[] results, int size) {
+        List<ExecutionResult> list = new ArrayList<>(size);
+
+        ByteBuffer buffer = ByteBuffer.wrap(results);
+        buffer.order(ByteOrder.BIG_ENDIAN);
+        for (int i = 0; i < size; i++) {
+            int code = buffer.getInt();
+            long nrgLeft = buffer.getLong();
+            byte[] output = new byte[buffer.getInt()];
+            buffer.get(output);
+
+            list.add(new ExecutionResult(ResultCode.fromInt(code), nrgLeft, output));
+        }
+        return list;
     }
 }
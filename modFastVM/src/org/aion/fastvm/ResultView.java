@@ -0,0 +1,154 @@
+/*
+ * Copyright (c) 2017-2018 Aion foundation.
+ *
+ *     This file is part of the aion network project.
+ *
+ *     The aion network project is free software: you can redistribute it
+ *     and/or modify it under the terms of the GNU General Public License
+ *     as published by the Free Software Foundation, either version 3 of
+ *     the License, or any later version.
+ *
+ *     The aion network project is distributed in the hope that it will
+ *     be useful, but WITHOUT ANY WARRANTY; without even the implied
+ *     warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *     See the GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with the aion network project source files.
+ *     If not, see <https://www.gnu.org/licenses/>.
+ *
+ * Contributors:
+ *     Aion foundation.
+ */
+package org.aion.fastvm;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import org.aion.vm.AbstractExecutionResult.ResultCode;
+import org.aion.vm.ExecutionResult;
+
+/**
+ * A read-only view of an execution result written by the native side, encoded as by {@link
+ * ExecutionResult#toBytes()}. The result code and energy left are read in place, and the output
+ * is only copied on request.
+ *
+ * <p>Each thread owns a single view, backed by a reusable direct buffer. It is overwritten by the
+ * next execution on the same thread, so callers must consume it before starting another one.
+ */
+public final class ResultView {
+
+    private static final int HEADER_SIZE = Integer.BYTES + Long.BYTES + Integer.BYTES;
+
+    private static final int INITIAL_CAPACITY = 4096;
+
+    /** Outputs larger than this are returned in a heap array rather than growing the buffer. */
+    private static final int MAX_CAPACITY = 1024 * 1024;
+
+    private static final ThreadLocal<ResultView> views = ThreadLocal.withInitial(ResultView::new);
+
+    private ByteBuffer direct = allocate(INITIAL_CAPACITY);
+    private ByteBuffer result = direct;
+
+    private ResultView() {}
+
+    /**
+     * Returns the view of the calling thread.
+     *
+     * @return view
+     */
+    static ResultView get() {
+        return views.get();
+    }
+
+    /**
+     * Returns the direct buffer the native side writes the next result into.
+     *
+     * @return buffer
+     */
+    ByteBuffer buffer() {
+        return direct;
+    }
+
+    /**
+     * Points the view at the result of the last execution. The native side returns the encoded
+     * result as an array if it did not fit into the direct buffer.
+     *
+     * @param buffer the direct buffer which was passed to the execution
+     * @param overflow the encoded result, or null if it was written into the direct buffer
+     * @return this view
+     */
+    ResultView set(ByteBuffer buffer, byte[] overflow) {
+        if (overflow == null) {
+            result = buffer;
+        } else {
+            result = ByteBuffer.wrap(overflow).order(ByteOrder.BIG_ENDIAN);
+            if (overflow.length <= MAX_CAPACITY) {
+                direct = allocate(Integer.highestOneBit(overflow.length - 1) << 1);
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Returns the result code.
+     *
+     * @return result code
+     */
+    public ResultCode getResultCode() {
+        return ResultCode.fromInt(result.getInt(0));
+    }
+
+    /**
+     * Returns the energy left.
+     *
+     * @return energy left
+     */
+    public long getNrgLeft() {
+        return result.getLong(Integer.BYTES);
+    }
+
+    /**
+     * Returns the size of the output.
+     *
+     * @return output size
+     */
+    public int getOutputSize() {
+        return result.getInt(Integer.BYTES + Long.BYTES);
+    }
+
+    /**
+     * Returns a read-only slice of the output, without copying it.
+     *
+     * @return output
+     */
+    public ByteBuffer getOutput() {
+        ByteBuffer output = result.asReadOnlyBuffer();
+        output.limit(HEADER_SIZE + getOutputSize());
+        output.position(HEADER_SIZE);
+        return output.slice();
+    }
+
+    /**
+     * Returns a copy of the output.
+     *
+     * @return output
+     */
+    public byte[] copyOutput() {
+        byte[] output = new byte[getOutputSize()];
+        getOutput().get(output);
+        return output;
+    }
+
+    /**
+     * Converts this view into an execution result, copying the output.
+     *
+     * @return execution result
+     */
+    public ExecutionResult toExecutionResult() {
+        return new ExecutionResult(getResultCode(), getNrgLeft(), copyOutput());
+    }
+
+    private static ByteBuffer allocate(int capacity) {
+        return ByteBuffer.allocateDirect(capacity).order(ByteOrder.BIG_ENDIAN);
+    }
+}
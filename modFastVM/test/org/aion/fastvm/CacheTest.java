@@ -23,10 +23,17 @@
 package org.aion.fastvm;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import org.aion.base.type.Address;
 import org.aion.base.util.Hex;
 import org.aion.mcf.vm.types.DataWord;
+import org.aion.vm.AbstractExecutionResult.ResultCode;
 import org.aion.vm.DummyRepository;
 import org.aion.vm.ExecutionContext;
 import org.aion.vm.ExecutionHelper;
@@ -108,6 +115,130 @@ public class CacheTest {
         System.out.println(t2 - t1);
     }
 
+    @Test
+    public void testObjectCache() throws IOException {
+        ExecutionContext ctx =
+                new ExecutionContext(
+                        txHash,
+                        address,
+                        origin,
+                        caller,
+                        nrgPrice,
+                        nrgLimit,
+                        callValue,
+                        callData,
+                        depth,
+                        kind,
+                        flags,
+                        blockCoinbase,
+                        blockNumber,
+                        blockTimestamp,
+                        blockNrgLimit,
+                        blockDifficulty);
+        FastVM vm = new FastVM();
+
+        byte[] code = Hex.decode("600760030260005260106000F3");
+        Path dir = Files.createTempDirectory("fastvm-cache");
+        int interpreterThreshold = FastVM.getInterpreterThreshold();
+        int optimizeThreshold = FastVM.getOptimizeThreshold();
+        long compiledCodeLimit = FastVM.getCompiledCodeLimit();
+        FastVM.setInterpreterThreshold(0);
+        FastVM.setOptimizeThreshold(0);
+        FastVM.enableObjectCache(dir.toString(), 1024 * 1024);
+        try {
+            ExecutionResult result = vm.run(code, ctx, new DummyRepository());
+            assertEquals(21, new DataWord(result.getOutput()).intValue());
+
+            File[] objects = dir.toFile().listFiles()[0].listFiles();
+            assertEquals(1, objects.length);
+
+            // Evict the compiled code, the next execution loads the object.
+            FastVM.setCompiledCodeLimit(0);
+            result = vm.run(code, ctx, new DummyRepository());
+            assertEquals(21, new DataWord(result.getOutput()).intValue());
+
+            // A corrupted object is discarded and the code compiled again.
+            byte[] object = Files.readAllBytes(objects[0].toPath());
+            object[object.length - 1] ^= 1;
+            Files.write(objects[0].toPath(), object);
+            result = vm.run(code, ctx, new DummyRepository());
+            assertEquals(ResultCode.SUCCESS, result.getResultCode());
+            assertEquals(21, new DataWord(result.getOutput()).intValue());
+            assertTrue(objects[0].exists());
+
+            // The compiled code is evicted, so the object is loaded again.
+            assertEquals(1, FastVM.preloadObjectCache(2));
+        } finally {
+            FastVM.disableObjectCache();
+            FastVM.setCompiledCodeLimit(compiledCodeLimit);
+            FastVM.setOptimizeThreshold(optimizeThreshold);
+            FastVM.setInterpreterThreshold(interpreterThreshold);
+        }
+    }
+
+    @Test
+    public void testPreloadedCodeRunsCompiled() throws IOException {
+        ExecutionContext ctx =
+                new ExecutionContext(
+                        txHash,
+                        address,
+                        origin,
+                        caller,
+                        nrgPrice,
+                        nrgLimit,
+                        callValue,
+                        callData,
+                        depth,
+                        kind,
+                        flags,
+                        blockCoinbase,
+                        blockNumber,
+                        blockTimestamp,
+                        blockNrgLimit,
+                        blockDifficulty);
+        FastVM vm = new FastVM();
+
+        // The objects are stored without the metadata, which differs between the two.
+        String logic = "600760030260005260106000F3";
+        String metadata = "a165627a7a72305820";
+        byte[] code1 = Hex.decode(logic + metadata + Hex.toHexString(RandomUtils.nextBytes(32)) + "0029");
+        byte[] code2 = Hex.decode(logic + metadata + Hex.toHexString(RandomUtils.nextBytes(32)) + "0029");
+        byte[] other = Hex.decode(logic + Hex.toHexString(RandomUtils.nextBytes(32)));
+
+        Path dir = Files.createTempDirectory("fastvm-cache");
+        int interpreterThreshold = FastVM.getInterpreterThreshold();
+        int optimizeThreshold = FastVM.getOptimizeThreshold();
+        long compiledCodeLimit = FastVM.getCompiledCodeLimit();
+        FastVM.setInterpreterThreshold(0);
+        FastVM.setOptimizeThreshold(0);
+        FastVM.enableObjectCache(dir.toString(), 1024 * 1024);
+        try {
+            ExecutionResult result = vm.run(code1, ctx, new DummyRepository());
+            assertEquals(21, new DataWord(result.getOutput()).intValue());
+
+            // Evict all compiled code, as after a restart.
+            FastVM.setCompiledCodeLimit(0);
+            vm.run(other, ctx, new DummyRepository());
+            FastVM.setCompiledCodeLimit(compiledCodeLimit);
+            assertFalse(FastVM.isCompiled(code1));
+
+            assertTrue(FastVM.preloadObjectCache(1) > 0);
+
+            // Code which is not compiled would be interpreted now.
+            FastVM.setInterpreterThreshold(Integer.MAX_VALUE);
+            for (byte[] code : new byte[][] {code1, code2}) {
+                result = vm.run(code, ctx, new DummyRepository());
+                assertEquals(21, new DataWord(result.getOutput()).intValue());
+                assertTrue(FastVM.isCompiled(code));
+            }
+        } finally {
+            FastVM.disableObjectCache();
+            FastVM.setCompiledCodeLimit(compiledCodeLimit);
+            FastVM.setOptimizeThreshold(optimizeThreshold);
+            FastVM.setInterpreterThreshold(interpreterThreshold);
+        }
+    }
+
     private byte[] generateContract(int baseSum) {
         // pragma solidity ^0.4.0;
         //
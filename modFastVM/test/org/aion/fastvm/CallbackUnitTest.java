@@ -210,6 +210,50 @@ public class CallbackUnitTest {
         assertArrayEquals(new byte[0], Callback.getCode(address.toBytes()));
     }
 
+    @Test
+    public void testGetCodeSize() {
+        Address address = getNewAddress();
+        byte[] code = RandomUtils.nextBytes(30);
+        pushNewCode(address, code);
+        assertEquals(code.length, Callback.getCodeSize(address.toBytes()));
+    }
+
+    @Test
+    public void testGetCodeSizeIsNoCode() {
+        Address address = getNewAddress();
+        pushNewCode(address, null);
+        assertEquals(0, Callback.getCodeSize(address.toBytes()));
+    }
+
+    @Test
+    public void testGetCodeSizeInScratch() {
+        Address address = getNewAddress();
+        byte[] code = RandomUtils.nextBytes(30);
+        pushNewCode(address, code);
+
+        ByteBuffer buf = Callback.scratch();
+        buf.clear();
+        buf.put(address.toBytes());
+        assertEquals(code.length, Callback.getCodeSizeInScratch());
+    }
+
+    @Test
+    public void testGetCodeSizeIgnoresCodeHash() {
+        byte[] code = RandomUtils.nextBytes(30);
+        byte[] codeHash = HashUtil.h256(code);
+        DummyRepository repo = new DummyRepository();
+        Address withCode = getNewAddress();
+        repo.createAccount(withCode).setCodeHash(codeHash);
+        repo.addContract(withCode, code);
+        pushNewRepo(repo);
+        assertEquals(code.length, Callback.getCodeSize(withCode.toBytes()));
+
+        // An account sharing the code hash but holding no code has no code size.
+        Address sameHash = getNewAddress();
+        repo.createAccount(sameHash).setCodeHash(codeHash);
+        assertEquals(0, Callback.getCodeSize(sameHash.toBytes()));
+    }
+
     @Test
     public void testGetCodeAtMultipleStackDepths() {
         int depths = RandomUtils.nextInt(3, 10);
@@ -242,6 +286,38 @@ public class CallbackUnitTest {
         assertArrayEquals(new DataWord(balance).getData(), Callback.getBalance(address.toBytes()));
     }
 
+    @Test
+    public void testGetBalanceInScratch() {
+        BigInteger balance = BigInteger.valueOf(RandomUtils.nextLong(100, 10_000));
+        Address address = pushNewBalance(balance);
+
+        ByteBuffer buf = Callback.scratch();
+        buf.clear();
+        buf.put(address.toBytes());
+        Callback.getBalanceInScratch();
+
+        byte[] result = new byte[DataWord.BYTES];
+        buf.clear();
+        buf.get(result);
+        assertArrayEquals(new DataWord(balance).getData(), result);
+    }
+
+    @Test
+    public void testGetBalanceInScratchUsingWholeWord() {
+        BigInteger balance = BigInteger.ONE.shiftLeft(8 * DataWord.BYTES).subtract(BigInteger.ONE);
+        Address address = pushNewBalance(balance);
+
+        ByteBuffer buf = Callback.scratch();
+        buf.clear();
+        buf.put(address.toBytes());
+        Callback.getBalanceInScratch();
+
+        byte[] result = new byte[DataWord.BYTES];
+        buf.clear();
+        buf.get(result);
+        assertEquals(balance, new BigInteger(1, result));
+    }
+
     @Test
     public void testGetBalanceNoSuchAccount() {
         IRepositoryCache repo = new DummyRepository();
@@ -356,6 +432,25 @@ public class CallbackUnitTest {
         assertArrayEquals(value, repo.getStorageValue(address, new DataWord(key)).getData());
     }
 
+    @Test
+    public void testGetStorageInScratch() {
+        IRepositoryCache repo = new DummyRepository();
+        pushNewRepo(repo);
+        byte[] key = RandomUtils.nextBytes(DataWord.BYTES);
+        byte[] value = RandomUtils.nextBytes(DataWord.BYTES);
+        Address address = putInStorage(key, value);
+
+        ByteBuffer buf = Callback.scratch();
+        buf.clear();
+        buf.put(address.toBytes()).put(key);
+        Callback.getStorageInScratch();
+
+        byte[] result = new byte[DataWord.BYTES];
+        buf.clear();
+        buf.get(result);
+        assertArrayEquals(value, result);
+    }
+
     @Test
     public void testPutStorageMultipleEntries() {
         int num = RandomUtils.nextInt(3, 10);
@@ -375,6 +470,29 @@ public class CallbackUnitTest {
         }
     }
 
+    @Test
+    public void testPutStorageInScratch() {
+        int num = RandomUtils.nextInt(3, 10);
+        IRepositoryCache repo = new DummyRepository();
+        pushNewRepo(repo);
+        Address[] addresses = new Address[num];
+        byte[][] keys = new byte[num][];
+        byte[][] values = new byte[num][];
+        ByteBuffer rows = Callback.scratch();
+        rows.clear();
+        for (int i = 0; i < num; i++) {
+            addresses[i] = getNewAddress();
+            keys[i] = RandomUtils.nextBytes(DataWord.BYTES);
+            values[i] = RandomUtils.nextBytes(DataWord.BYTES);
+            rows.put(addresses[i].toBytes()).put(keys[i]).put(values[i]);
+        }
+        Callback.putStorageInScratch(num);
+        for (int i = 0; i < num; i++) {
+            assertArrayEquals(
+                    values[i], repo.getStorageValue(addresses[i], new DataWord(keys[i])).getData());
+        }
+    }
+
     @Test
     public void testPutStorageMultipleAddresses() {
         IRepositoryCache repo = new DummyRepository();
@@ -0,0 +1,131 @@
+/*
+ * Copyright (c) 2017-2018 Aion foundation.
+ *
+ *     This file is part of the aion network project.
+ *
+ *     The aion network project is free software: you can redistribute it
+ *     and/or modify it under the terms of the GNU General Public License
+ *     as published by the Free Software Foundation, either version 3 of
+ *     the License, or any later version.
+ *
+ *     The aion network project is distributed in the hope that it will
+ *     be useful, but WITHOUT ANY WARRANTY; without even the implied
+ *     warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *     See the GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with the aion network project source files.
+ *     If not, see <https://www.gnu.org/licenses/>.
+ *
+ * Contributors:
+ *     Aion foundation.
+ */
+package org.aion.fastvm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import org.apache.commons.lang3.RandomUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/** Unit tests for CodeRegistry class. */
+public class CodeRegistryTest {
+
+    @Before
+    public void setup() {
+        CodeRegistry.clear();
+    }
+
+    @After
+    public void tearDown() {
+        CodeRegistry.setCapacity(64L * 1024 * 1024);
+        CodeRegistry.clear();
+    }
+
+    @Test
+    public void testSameCodeIsRegisteredOnce() {
+        byte[] code = RandomUtils.nextBytes(100);
+
+        long handle1 = CodeRegistry.acquire(code);
+        long handle2 = CodeRegistry.acquire(code.clone());
+        assertEquals(handle1, handle2);
+        assertEquals(1, CodeRegistry.count());
+
+        FastVM.releaseCode(handle1);
+        FastVM.releaseCode(handle2);
+    }
+
+    @Test
+    public void testCodeIsFoundByCodeHash() {
+        byte[] code = RandomUtils.nextBytes(100);
+        byte[] codeHash = RandomUtils.nextBytes(32);
+
+        long handle1 = CodeRegistry.acquire(code, codeHash);
+        long handle2 = CodeRegistry.acquire(code, codeHash.clone());
+        assertEquals(handle1, handle2);
+        assertEquals(1, CodeRegistry.count());
+
+        FastVM.releaseCode(handle1);
+        FastVM.releaseCode(handle2);
+    }
+
+    @Test
+    public void testCodeIsKeptWhenCallerModifiesItsArray() {
+        byte[] code = RandomUtils.nextBytes(100);
+        byte[] original = code.clone();
+
+        long handle1 = CodeRegistry.acquire(code);
+        code[0]++;
+        long handle2 = CodeRegistry.acquire(original);
+        assertEquals(handle1, handle2);
+        assertEquals(1, CodeRegistry.count());
+
+        FastVM.releaseCode(handle1);
+        FastVM.releaseCode(handle2);
+    }
+
+    @Test
+    public void testDifferentCodesAreRegisteredSeparately() {
+        long handle1 = CodeRegistry.acquire(RandomUtils.nextBytes(100));
+        long handle2 = CodeRegistry.acquire(RandomUtils.nextBytes(100));
+        assertNotEquals(handle1, handle2);
+        assertEquals(2, CodeRegistry.count());
+
+        FastVM.releaseCode(handle1);
+        FastVM.releaseCode(handle2);
+    }
+
+    @Test
+    public void testLeastRecentlyUsedCodeIsEvicted() {
+        CodeRegistry.setCapacity(250);
+
+        byte[] code1 = RandomUtils.nextBytes(100);
+        byte[] code2 = RandomUtils.nextBytes(100);
+        byte[] code3 = RandomUtils.nextBytes(100);
+        FastVM.releaseCode(CodeRegistry.acquire(code1));
+        FastVM.releaseCode(CodeRegistry.acquire(code2));
+        FastVM.releaseCode(CodeRegistry.acquire(code1));
+        FastVM.releaseCode(CodeRegistry.acquire(code3));
+
+        // code2 was evicted, code1 is still registered
+        assertEquals(2, CodeRegistry.count());
+        FastVM.releaseCode(CodeRegistry.acquire(code1));
+        assertEquals(2, CodeRegistry.count());
+    }
+
+    @Test
+    public void testHandleOutlivesEviction() {
+        CodeRegistry.setCapacity(100);
+
+        long handle = CodeRegistry.acquire(RandomUtils.nextBytes(100));
+        FastVM.releaseCode(CodeRegistry.acquire(RandomUtils.nextBytes(100)));
+        assertEquals(1, CodeRegistry.count());
+
+        // the evicted entry is only freed with the reference held by the caller
+        FastVM.retainCode(handle);
+        FastVM.releaseCode(handle);
+        FastVM.releaseCode(handle);
+    }
+}
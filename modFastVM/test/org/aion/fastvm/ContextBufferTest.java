@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2017-2018 Aion foundation.
+ *
+ *     This file is part of the aion network project.
+ *
+ *     The aion network project is free software: you can redistribute it
+ *     and/or modify it under the terms of the GNU General Public License
+ *     as published by the Free Software Foundation, either version 3 of
+ *     the License, or any later version.
+ *
+ *     The aion network project is distributed in the hope that it will
+ *     be useful, but WITHOUT ANY WARRANTY; without even the implied
+ *     warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *     See the GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with the aion network project source files.
+ *     If not, see <https://www.gnu.org/licenses/>.
+ *
+ * Contributors:
+ *     Aion foundation.
+ */
+package org.aion.fastvm;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import org.aion.base.type.Address;
+import org.aion.mcf.vm.types.DataWord;
+import org.aion.vm.ExecutionContext;
+import org.apache.commons.lang3.RandomUtils;
+import org.junit.Test;
+
+/** Unit tests for ContextBuffer class. */
+public class ContextBufferTest {
+
+    @Test
+    public void testWriteMatchesEncoding() {
+        ExecutionContext ctx = newContext(RandomUtils.nextBytes(36));
+        ContextBuffer buf = ContextBuffer.acquire();
+
+        assertArrayEquals(ctx.toBytes(), toArray(buf.write(ctx).buffer()));
+        buf.release();
+    }
+
+    @Test
+    public void testWriteLargeCallData() {
+        ExecutionContext ctx = newContext(RandomUtils.nextBytes(100_000));
+        ContextBuffer buf = ContextBuffer.acquire();
+
+        assertArrayEquals(ctx.toBytes(), toArray(buf.write(ctx).buffer()));
+        assertTrue(buf.buffer().isDirect());
+        buf.release();
+    }
+
+    @Test
+    public void testSetCallData() {
+        ExecutionContext ctx = newContext(RandomUtils.nextBytes(36));
+        ContextBuffer buf = ContextBuffer.acquire().write(ctx);
+
+        for (int length : new int[] {36, 4, 0, 68, 10_000}) {
+            byte[] callData = RandomUtils.nextBytes(length);
+            buf.setCallData(callData);
+            assertArrayEquals(withCallData(ctx, callData).toBytes(), toArray(buf.buffer()));
+        }
+        buf.release();
+    }
+
+    @Test
+    public void testBuffersAreRecycledPerThread() {
+        ContextBuffer outer = ContextBuffer.acquire();
+        ContextBuffer inner = ContextBuffer.acquire();
+        assertNotSame(outer, inner);
+
+        inner.release();
+        assertSame(inner, ContextBuffer.acquire());
+        inner.release();
+        outer.release();
+    }
+
+    private static byte[] toArray(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+
+    private static ExecutionContext withCallData(ExecutionContext ctx, byte[] callData) {
+        return new ExecutionContext(
+                ctx.transactionHash(),
+                ctx.address(),
+                ctx.origin(),
+                ctx.sender(),
+                ctx.nrgPrice(),
+                ctx.nrgLimit(),
+                ctx.callValue(),
+                callData,
+                ctx.depth(),
+                ctx.kind(),
+                ctx.flags(),
+                ctx.blockCoinbase(),
+                ctx.blockNumber(),
+                ctx.blockTimestamp(),
+                ctx.blockNrgLimit(),
+                ctx.blockDifficulty());
+    }
+
+    private static ExecutionContext newContext(byte[] callData) {
+        return new ExecutionContext(
+                RandomUtils.nextBytes(32),
+                Address.wrap(RandomUtils.nextBytes(32)),
+                Address.wrap(RandomUtils.nextBytes(32)),
+                Address.wrap(RandomUtils.nextBytes(32)),
+                new DataWord(RandomUtils.nextLong(1, 1_000)),
+                RandomUtils.nextLong(0, 1_000_000),
+                new DataWord(RandomUtils.nextLong(0, 1_000)),
+                callData,
+                RandomUtils.nextInt(0, 10),
+                ExecutionContext.CALL,
+                0,
+                Address.wrap(RandomUtils.nextBytes(32)),
+                RandomUtils.nextLong(0, 1_000_000),
+                RandomUtils.nextLong(0, 1_000_000),
+                RandomUtils.nextLong(0, 1_000_000),
+                new DataWord(RandomUtils.nextLong(0, 1_000_000)));
+    }
+}
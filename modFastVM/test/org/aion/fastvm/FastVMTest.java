@@ -23,18 +23,23 @@
 package org.aion.fastvm;
 
 import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 
 import java.io.IOException;
 import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.List;
 import org.aion.base.type.Address;
 import org.aion.base.util.ByteUtil;
 import org.aion.base.util.Hex;
 import org.aion.contract.ContractUtils;
 import org.aion.crypto.ECKey;
+import org.aion.crypto.HashUtil;
 import org.aion.mcf.core.ImportResult;
 import org.aion.mcf.vm.types.DataWord;
 import org.aion.vm.AbstractExecutionResult.ResultCode;
@@ -47,6 +52,7 @@ import org.aion.zero.impl.types.AionBlock;
 import org.aion.zero.impl.types.AionTxInfo;
 import org.aion.zero.types.AionTransaction;
 import org.apache.commons.lang3.RandomUtils;
+import org.apache.commons.lang3.tuple.Pair;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Ignore;
@@ -120,6 +126,557 @@ public class FastVMTest {
         assertEquals(16, result.getOutput().length);
     }
 
+    @Test
+    public void testCompileAsync() throws InterruptedException {
+        ExecutionContext ctx =
+                new ExecutionContext(
+                        txHash,
+                        address,
+                        origin,
+                        caller,
+                        nrgPrice,
+                        nrgLimit,
+                        callValue,
+                        callData,
+                        depth,
+                        kind,
+                        flags,
+                        blockCoinbase,
+                        blockNumber,
+                        blockTimestamp,
+                        blockNrgLimit,
+                        blockDifficulty);
+        FastVM vm = new FastVM();
+
+        byte[] code = Hex.decode("6FFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFF60030160E052601060E0F3");
+        assertTrue(FastVM.compileAsync(code));
+        assertTrue(FastVM.compileAsync(code));
+
+        for (int i = 0; i < 100 && FastVM.getPendingCompilations() > 0; i++) {
+            Thread.sleep(50);
+        }
+        assertEquals(0, FastVM.getPendingCompilations());
+
+        ExecutionResult result = vm.run(code, ctx, new DummyRepository());
+        assertEquals(ResultCode.SUCCESS, result.getResultCode());
+        assertEquals(16, result.getOutput().length);
+    }
+
+    @Test
+    public void testPrewarm() throws InterruptedException {
+        byte[] code = Hex.decode("6FFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFF60040160E052601060E0F3");
+        DummyRepository repo = new DummyRepository();
+        repo.createAccount(address);
+        repo.saveCode(address, code);
+
+        byte[] zero = DataWord.ZERO.getData();
+        List<AionTransaction> transactions = new ArrayList<>();
+        transactions.add(new AionTransaction(zero, origin, address, zero, callData, nrgLimit, 1L));
+        transactions.add(new AionTransaction(zero, origin, address, zero, callData, nrgLimit, 1L));
+        transactions.add(new AionTransaction(zero, origin, caller, zero, callData, nrgLimit, 1L));
+        assertEquals(1, FastVM.prewarm(transactions, repo));
+
+        for (int i = 0; i < 100 && FastVM.getPendingCompilations() > 0; i++) {
+            Thread.sleep(50);
+        }
+        assertEquals(0, FastVM.getPendingCompilations());
+    }
+
+    @Test
+    public void testMetadataSharesCompiledCode() {
+        ExecutionContext ctx =
+                new ExecutionContext(
+                        txHash,
+                        address,
+                        origin,
+                        caller,
+                        nrgPrice,
+                        nrgLimit,
+                        callValue,
+                        callData,
+                        depth,
+                        kind,
+                        flags,
+                        blockCoinbase,
+                        blockNumber,
+                        blockTimestamp,
+                        blockNrgLimit,
+                        blockDifficulty);
+        FastVM vm = new FastVM();
+
+        String logic = "600960030260005260106000F3";
+        String metadata = "a165627a7a72305820";
+        byte[] code1 = Hex.decode(logic + metadata + Hex.toHexString(RandomUtils.nextBytes(32)) + "0029");
+        byte[] code2 = Hex.decode(logic + metadata + Hex.toHexString(RandomUtils.nextBytes(32)) + "0029");
+
+        int interpreterThreshold = FastVM.getInterpreterThreshold();
+        FastVM.setInterpreterThreshold(0);
+        try {
+            ExecutionResult result = vm.run(code1, ctx, new DummyRepository());
+            assertEquals(27, new DataWord(result.getOutput()).intValue());
+            long size = FastVM.getCompiledCodeSize();
+
+            result = vm.run(code2, ctx, new DummyRepository());
+            assertEquals(27, new DataWord(result.getOutput()).intValue());
+            assertEquals(size, FastVM.getCompiledCodeSize());
+        } finally {
+            FastVM.setInterpreterThreshold(interpreterThreshold);
+        }
+    }
+
+    @Test
+    public void testRegionResumesInInterpreter() {
+        // Four functions: the first jumps to a computed destination in the body of the others,
+        // which is not compiled with its region.
+        String dispatch =
+                "6000356c010000000000000000000000009004"
+                        + "8063000000011460" + "3c57"
+                        + "8063000000021460" + "4357"
+                        + "8063000000031460" + "4357"
+                        + "8063000000041460" + "4357"
+                        + "00";
+        String function1 = "5b601060330156";
+        String function2 = "5b602a60005260106000f3";
+        byte[] code = Hex.decode(dispatch + function1 + function2);
+
+        FastVM vm = new FastVM();
+        int regionThreshold = FastVM.getRegionThreshold();
+        int interpreterThreshold = FastVM.getInterpreterThreshold();
+        FastVM.setRegionThreshold(1);
+        FastVM.setInterpreterThreshold(0);
+        try {
+            for (String selector : new String[] {"00000001", "00000002"}) {
+                ExecutionContext ctx =
+                        new ExecutionContext(
+                                txHash,
+                                address,
+                                origin,
+                                caller,
+                                nrgPrice,
+                                nrgLimit,
+                                callValue,
+                                Hex.decode(selector),
+                                depth,
+                                kind,
+                                flags,
+                                blockCoinbase,
+                                blockNumber,
+                                blockTimestamp,
+                                blockNrgLimit,
+                                blockDifficulty);
+                ExecutionResult result = vm.run(code, ctx, new DummyRepository());
+                assertEquals(ResultCode.SUCCESS, result.getResultCode());
+                assertEquals(42, new DataWord(result.getOutput()).intValue());
+            }
+        } finally {
+            FastVM.setInterpreterThreshold(interpreterThreshold);
+            FastVM.setRegionThreshold(regionThreshold);
+        }
+    }
+
+    @Test
+    public void testInterpreterMatchesCompiled() {
+        ExecutionContext ctx =
+                new ExecutionContext(
+                        txHash,
+                        address,
+                        origin,
+                        caller,
+                        nrgPrice,
+                        nrgLimit,
+                        callValue,
+                        callData,
+                        depth,
+                        kind,
+                        flags,
+                        blockCoinbase,
+                        blockNumber,
+                        blockTimestamp,
+                        blockNrgLimit,
+                        blockDifficulty);
+        FastVM vm = new FastVM();
+
+        // The trailing bytes are never executed, they make the code new to the jit.
+        byte[] code =
+                Hex.decode(
+                        "6005600055600054600052601060002060105260205260306000F3"
+                                + Hex.toHexString(RandomUtils.nextBytes(32)));
+
+        int interpreterThreshold = FastVM.getInterpreterThreshold();
+        FastVM.setInterpreterThreshold(Integer.MAX_VALUE);
+        try {
+            ExecutionResult interpreted = vm.run(code, ctx, new DummyRepository());
+
+            FastVM.setInterpreterThreshold(0);
+            ExecutionResult compiled = vm.run(code, ctx, new DummyRepository());
+            assertEquals(compiled.getResultCode(), interpreted.getResultCode());
+            assertEquals(compiled.getNrgLeft(), interpreted.getNrgLeft());
+            assertArrayEquals(compiled.getOutput(), interpreted.getOutput());
+        } finally {
+            FastVM.setInterpreterThreshold(interpreterThreshold);
+        }
+    }
+
+    @Test
+    public void testCompiledCodeEviction() {
+        ExecutionContext ctx =
+                new ExecutionContext(
+                        txHash,
+                        address,
+                        origin,
+                        caller,
+                        nrgPrice,
+                        nrgLimit,
+                        callValue,
+                        callData,
+                        depth,
+                        kind,
+                        flags,
+                        blockCoinbase,
+                        blockNumber,
+                        blockTimestamp,
+                        blockNrgLimit,
+                        blockDifficulty);
+        FastVM vm = new FastVM();
+
+        byte[] code = Hex.decode("600760030260005260106000F3");
+        int interpreterThreshold = FastVM.getInterpreterThreshold();
+        long compiledCodeLimit = FastVM.getCompiledCodeLimit();
+        FastVM.setInterpreterThreshold(0);
+        FastVM.setCompiledCodeLimit(0);
+        try {
+            ExecutionResult result = vm.run(code, ctx, new DummyRepository());
+            assertEquals(ResultCode.SUCCESS, result.getResultCode());
+            assertEquals(0, FastVM.getCompiledCodeSize());
+
+            FastVM.pin(code);
+            result = vm.run(code, ctx, new DummyRepository());
+            assertEquals(ResultCode.SUCCESS, result.getResultCode());
+            assertEquals(21, new DataWord(result.getOutput()).intValue());
+            assertTrue(FastVM.getCompiledCodeSize() > 0);
+        } finally {
+            FastVM.unpin(code);
+            FastVM.setCompiledCodeLimit(compiledCodeLimit);
+            FastVM.setInterpreterThreshold(interpreterThreshold);
+        }
+    }
+
+    @Test
+    public void testRunView() {
+        ExecutionContext ctx =
+                new ExecutionContext(
+                        txHash,
+                        address,
+                        origin,
+                        caller,
+                        nrgPrice,
+                        nrgLimit,
+                        callValue,
+                        callData,
+                        depth,
+                        kind,
+                        flags,
+                        blockCoinbase,
+                        blockNumber,
+                        blockTimestamp,
+                        blockNrgLimit,
+                        blockDifficulty);
+        FastVM vm = new FastVM();
+
+        byte[] code = Hex.decode("6FFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFF60020160E052601060E0F3");
+        ExecutionResult expected = vm.run(code, ctx, new DummyRepository());
+        ResultView view = vm.runView(code, ctx, new DummyRepository());
+
+        assertEquals(expected.getResultCode(), view.getResultCode());
+        assertEquals(expected.getNrgLeft(), view.getNrgLeft());
+        assertEquals(16, view.getOutputSize());
+        assertArrayEquals(expected.getOutput(), view.copyOutput());
+
+        // an output which does not fit into the direct buffer
+        code = Hex.decode("6120006000F3");
+        view = vm.runView(code, ctx, new DummyRepository());
+
+        assertEquals(ResultCode.SUCCESS, view.getResultCode());
+        assertEquals(8192, view.getOutputSize());
+        assertArrayEquals(new byte[8192], view.copyOutput());
+    }
+
+    @Test
+    public void testRunRepeatedly() {
+        ExecutionContext ctx =
+                new ExecutionContext(
+                        txHash,
+                        address,
+                        origin,
+                        caller,
+                        nrgPrice,
+                        nrgLimit,
+                        callValue,
+                        callData,
+                        depth,
+                        kind,
+                        flags,
+                        blockCoinbase,
+                        blockNumber,
+                        blockTimestamp,
+                        blockNrgLimit,
+                        blockDifficulty);
+        FastVM vm = new FastVM();
+
+        byte[] code = Hex.decode("6FFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFF60020160E052601060E0F3");
+        for (int i = 0; i < 3; i++) {
+            ExecutionResult result = vm.run(code, ctx, new DummyRepository());
+            assertEquals(ResultCode.SUCCESS, result.getResultCode());
+            assertEquals(19985, result.getNrgLeft());
+        }
+    }
+
+    @Test
+    public void testBalancesAfterNestedValueTransfer() {
+        Address callee = Address.wrap(RandomUtils.nextBytes(32));
+        ExecutionContext ctx =
+                new ExecutionContext(
+                        txHash,
+                        address,
+                        origin,
+                        caller,
+                        nrgPrice,
+                        1_000_000,
+                        callValue,
+                        callData,
+                        depth,
+                        ExecutionContext.CALL,
+                        flags,
+                        blockCoinbase,
+                        blockNumber,
+                        blockTimestamp,
+                        blockNrgLimit,
+                        blockDifficulty);
+        FastVM vm = new FastVM();
+
+        DummyRepository repo = new DummyRepository();
+        repo.addBalance(address, BigInteger.valueOf(1000));
+        repo.addBalance(callee, BigInteger.valueOf(100));
+        // returns the balances of the caller and of itself
+        repo.addContract(callee, Hex.decode("3331600052303160105260206000f3"));
+
+        // reads both balances, calls the callee with a value of 5, then reads its balance again
+        String calleeAddress = Hex.toHexString(callee.toBytes());
+        byte[] code =
+                Hex.decode(
+                        "3031602052"
+                                + "7f"
+                                + calleeAddress
+                                + "3150"
+                                + "60206000600060006005"
+                                + "7f"
+                                + calleeAddress
+                                + "5af150"
+                                + "3031603052"
+                                + "60406000f3");
+        ExecutionResult result = vm.run(code, ctx, repo);
+        assertEquals(ResultCode.SUCCESS, result.getResultCode());
+
+        byte[] output = result.getOutput();
+        assertEquals(995, new DataWord(Arrays.copyOfRange(output, 0, 16)).intValue());
+        assertEquals(105, new DataWord(Arrays.copyOfRange(output, 16, 32)).intValue());
+        assertEquals(1000, new DataWord(Arrays.copyOfRange(output, 32, 48)).intValue());
+        assertEquals(995, new DataWord(Arrays.copyOfRange(output, 48, 64)).intValue());
+    }
+
+    @Test
+    public void testNestedCallWithCodeHash() {
+        Address callee = Address.wrap(RandomUtils.nextBytes(32));
+        ExecutionContext ctx =
+                new ExecutionContext(
+                        txHash,
+                        address,
+                        origin,
+                        caller,
+                        nrgPrice,
+                        1_000_000,
+                        callValue,
+                        callData,
+                        depth,
+                        ExecutionContext.CALL,
+                        flags,
+                        blockCoinbase,
+                        blockNumber,
+                        blockTimestamp,
+                        blockNrgLimit,
+                        blockDifficulty);
+        FastVM vm = new FastVM();
+
+        // returns 42, looked up by the code hash kept in the account state
+        byte[] calleeCode = Hex.decode("602a60005260106000f3");
+        DummyRepository repo = new DummyRepository();
+        repo.addContract(callee, calleeCode);
+        repo.getAccountState(callee).setCodeHash(HashUtil.h256(calleeCode));
+
+        // calls the callee and returns its output
+        byte[] code =
+                Hex.decode(
+                        "60106000600060006000"
+                                + "7f"
+                                + Hex.toHexString(callee.toBytes())
+                                + "5af150"
+                                + "60106000f3");
+        ExecutionResult result = vm.run(code, ctx, repo);
+        assertEquals(ResultCode.SUCCESS, result.getResultCode());
+        assertEquals(42, new DataWord(result.getOutput()).intValue());
+    }
+
+    @Test
+    public void testRunWithCodeHash() {
+        ExecutionContext ctx =
+                new ExecutionContext(
+                        txHash,
+                        address,
+                        origin,
+                        caller,
+                        nrgPrice,
+                        nrgLimit,
+                        callValue,
+                        callData,
+                        depth,
+                        kind,
+                        flags,
+                        blockCoinbase,
+                        blockNumber,
+                        blockTimestamp,
+                        blockNrgLimit,
+                        blockDifficulty);
+        FastVM vm = new FastVM();
+
+        byte[] code = Hex.decode("6FFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFF60030160E052601060E0F3");
+        byte[] codeHash = HashUtil.h256(code);
+        ExecutionResult expected = vm.run(code, ctx, new DummyRepository());
+        ExecutionResult result = vm.run(code, codeHash, ctx, new DummyRepository());
+
+        assertEquals(ResultCode.SUCCESS, result.getResultCode());
+        assertEquals(expected.getNrgLeft(), result.getNrgLeft());
+        assertArrayEquals(expected.getOutput(), result.getOutput());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRunWithInvalidCodeHash() {
+        ExecutionContext ctx =
+                new ExecutionContext(
+                        txHash,
+                        address,
+                        origin,
+                        caller,
+                        nrgPrice,
+                        nrgLimit,
+                        callValue,
+                        callData,
+                        depth,
+                        kind,
+                        flags,
+                        blockCoinbase,
+                        blockNumber,
+                        blockTimestamp,
+                        blockNrgLimit,
+                        blockDifficulty);
+        FastVM vm = new FastVM();
+
+        byte[] code = Hex.decode("6FFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFF60030160E052601060E0F3");
+        vm.run(code, new byte[16], ctx, new DummyRepository());
+    }
+
+    @Test
+    public void testRunBatch() {
+        FastVM vm = new FastVM();
+        List<Pair<byte[], ExecutionContext>> batch = new ArrayList<>();
+        List<ExecutionResult> expected = new ArrayList<>();
+
+        for (int i = 0; i < 10; i++) {
+            ExecutionContext ctx =
+                    new ExecutionContext(
+                            txHash,
+                            address,
+                            origin,
+                            caller,
+                            nrgPrice,
+                            nrgLimit + i,
+                            callValue,
+                            callData,
+                            depth,
+                            kind,
+                            flags,
+                            blockCoinbase,
+                            blockNumber,
+                            blockTimestamp,
+                            blockNrgLimit,
+                            blockDifficulty);
+            // return (2^128 - 1 + i) or revert the same value
+            String op = i % 2 == 0 ? "F3" : "FD";
+            byte[] code =
+                    Hex.decode(
+                            "6FFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFF60"
+                                    + String.format("%02X", i)
+                                    + "0160E052601060E0"
+                                    + op);
+
+            batch.add(Pair.of(code, ctx));
+            expected.add(vm.run(code, ctx, new DummyRepository()));
+        }
+
+        List<ExecutionResult> results = vm.runBatch(batch, new DummyRepository());
+
+        assertEquals(expected.size(), results.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).getResultCode(), results.get(i).getResultCode());
+            assertEquals(expected.get(i).getNrgLeft(), results.get(i).getNrgLeft());
+            assertArrayEquals(expected.get(i).getOutput(), results.get(i).getOutput());
+        }
+    }
+
+    @Test
+    public void testRunBatchUnwindsCallbackStackOnException() {
+        FastVM vm = new FastVM();
+        ExecutionContext ctx =
+                new ExecutionContext(
+                        txHash,
+                        address,
+                        origin,
+                        caller,
+                        nrgPrice,
+                        nrgLimit,
+                        callValue,
+                        callData,
+                        depth,
+                        kind,
+                        flags,
+                        blockCoinbase,
+                        blockNumber,
+                        blockTimestamp,
+                        blockNrgLimit,
+                        blockDifficulty);
+        DummyRepository repo =
+                new DummyRepository() {
+                    @Override
+                    public BigInteger getBalance(Address addr) {
+                        throw new IllegalStateException("balance unavailable");
+                    }
+                };
+
+        // the second execution reads its balance, which fails
+        List<Pair<byte[], ExecutionContext>> batch = new ArrayList<>();
+        batch.add(Pair.of(Hex.decode("60106000f3"), ctx));
+        batch.add(Pair.of(Hex.decode("303160005260106000f3"), ctx));
+        batch.add(Pair.of(Hex.decode("60106000f3"), ctx));
+
+        boolean thrown = false;
+        try {
+            vm.runBatch(batch, repo);
+        } catch (IllegalStateException e) {
+            thrown = true;
+        }
+        assertTrue(thrown);
+        assertEquals(0, Callback.depth());
+    }
+
     @Test
     public void testGetCodeByAddress1() {
         ExecutionContext ctx =
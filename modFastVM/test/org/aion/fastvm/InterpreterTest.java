@@ -0,0 +1,467 @@
+/*
+ * Copyright (c) 2017-2018 Aion foundation.
+ *
+ *     This file is part of the aion network project.
+ *
+ *     The aion network project is free software: you can redistribute it
+ *     and/or modify it under the terms of the GNU General Public License
+ *     as published by the Free Software Foundation, either version 3 of
+ *     the License, or any later version.
+ *
+ *     The aion network project is distributed in the hope that it will
+ *     be useful, but WITHOUT ANY WARRANTY; without even the implied
+ *     warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *     See the GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with the aion network project source files.
+ *     If not, see <https://www.gnu.org/licenses/>.
+ *
+ * Contributors:
+ *     Aion foundation.
+ */
+package org.aion.fastvm;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import java.math.BigInteger;
+import java.util.List;
+import org.aion.base.type.Address;
+import org.aion.base.util.Hex;
+import org.aion.mcf.vm.types.DataWord;
+import org.aion.mcf.vm.types.Log;
+import org.aion.vm.AbstractExecutionResult.ResultCode;
+import org.aion.vm.DummyRepository;
+import org.aion.vm.ExecutionContext;
+import org.aion.vm.ExecutionResult;
+import org.aion.zero.types.AionInternalTx;
+import org.apache.commons.lang3.RandomUtils;
+import org.junit.Test;
+
+/**
+ * Runs the same code interpreted and compiled and checks that both tiers agree on the result, the
+ * energy left and every side effect, including those of nested calls.
+ */
+public class InterpreterTest {
+
+    private static final String[] OPERANDS = {
+        "00000000000000000000000000000000",
+        "00000000000000000000000000000001",
+        "00000000000000000000000000000007",
+        "0123456789abcdef0123456789abcdef",
+        "fffffffffffffffffffffffffffffff9",
+        "80000000000000000000000000000000",
+        "ffffffffffffffffffffffffffffffff"
+    };
+
+    // ADD MUL SUB DIV SDIV MOD SMOD EXP SIGNEXTEND LT GT SLT SGT EQ AND OR XOR BYTE
+    private static final String[] BINARY_OPS = {
+        "01", "02", "03", "04", "05", "06", "07", "0a", "0b", "10", "11", "12", "13", "14", "16",
+        "17", "18", "1a"
+    };
+
+    // ADDMOD MULMOD
+    private static final String[] TERNARY_OPS = {"08", "09"};
+
+    // ISZERO NOT
+    private static final String[] UNARY_OPS = {"15", "19"};
+
+    // Stores twice its input at key 1, logs it with one topic and returns it.
+    private static final String CALLEE_CODE =
+            "600035600202806001556000526007600860106000a160106000f3";
+
+    private static final String CALL = "f1";
+    private static final String CALLCODE = "f2";
+    private static final String DELEGATECALL = "f4";
+    private static final String STATICCALL = "fa";
+    private static final String ALL_GAS = "ffffffffffffffffffffffffffffffff";
+
+    private byte[] txHash = RandomUtils.nextBytes(32);
+    private Address origin = Address.wrap(RandomUtils.nextBytes(32));
+    private Address address = Address.wrap(RandomUtils.nextBytes(32));
+    private Address callee = Address.wrap(RandomUtils.nextBytes(32));
+    private Address nested = Address.wrap(RandomUtils.nextBytes(32));
+    private Address blockCoinbase = Address.wrap(RandomUtils.nextBytes(32));
+    private byte[] callData = Hex.decode("0123456789abcdef0123456789abcdef0123456789");
+
+    @Test
+    public void testArithmetic() {
+        for (String op : BINARY_OPS) {
+            Program program = new Program();
+            for (String a : OPERANDS) {
+                for (String b : OPERANDS) {
+                    program.push(b).push(a).op(op).save(1);
+                }
+            }
+            assertInterpreterMatchesCompiled(program, 0);
+        }
+
+        for (String op : TERNARY_OPS) {
+            Program program = new Program();
+            for (String a : OPERANDS) {
+                for (String b : OPERANDS) {
+                    for (String m : OPERANDS) {
+                        program.push(m).push(b).push(a).op(op).save(1);
+                    }
+                }
+            }
+            assertInterpreterMatchesCompiled(program, 0);
+        }
+
+        for (String op : UNARY_OPS) {
+            Program program = new Program();
+            for (String a : OPERANDS) {
+                program.push(a).op(op).save(1);
+            }
+            assertInterpreterMatchesCompiled(program, 0);
+        }
+    }
+
+    @Test
+    public void testEnvironment() {
+        Program program = new Program();
+        // ADDRESS CALLER ORIGIN COINBASE push two items, the others one
+        for (String op : new String[] {"30", "33", "32", "41"}) {
+            program.op(op).save(2);
+        }
+        for (String op : new String[] {"34", "36", "38", "3a", "42", "43", "44", "45", "58"}) {
+            program.op(op).save(1);
+        }
+        for (int offset : new int[] {0, 5, 20, 100}) {
+            program.push(offset).op("35").save(1); // CALLDATALOAD
+        }
+        for (Address account : new Address[] {address, callee, nested, origin}) {
+            program.pushAddress(account).op("31").save(1); // BALANCE
+            program.pushAddress(account).op("3b").save(1); // EXTCODESIZE
+        }
+        program.op("59").save(1).op("5a").save(1); // MSIZE GAS
+        assertInterpreterMatchesCompiled(program, 0);
+    }
+
+    @Test
+    public void testCopiesAndMemory() {
+        Program program = new Program();
+        // CALLDATACOPY and CODECOPY, in range and padded with zeros past the end
+        for (String op : new String[] {"37", "39"}) {
+            for (int src : new int[] {0, 3, 18, 5000}) {
+                program.push(0x25).push(src).push(0x800).op(op).load(0x800, 3);
+            }
+        }
+        // EXTCODECOPY of existing and missing code
+        for (Address account : new Address[] {callee, origin}) {
+            program.push(0x45).push(2).push(0x800).pushAddress(account).op("3c").load(0x800, 5);
+        }
+        // SHA3 of empty, partial and multi-word ranges
+        for (int size : new int[] {0, 1, 0x20, 0x45}) {
+            program.push(size).push(0x800).op("20").save(2);
+        }
+        // memory expansion by MSTORE8, MLOAD and an empty copy far away
+        program.push(0x2a).push(0x3001).op("53").op("59").save(1);
+        program.push(0x4000).op("51").save(1).op("59").save(1);
+        program.push(0).push(0).push(0xf000).op("37").op("59").save(1);
+        program.op("5a").save(1);
+        assertInterpreterMatchesCompiled(program, 0);
+    }
+
+    @Test
+    public void testStorage() {
+        Program program = new Program();
+        program.push(3).op("54").save(1); // SLOAD of a preset row
+        program.push(5).push(0).op("55"); // insert
+        program.push(6).push(0).op("55"); // reset
+        program.push(0).push(3).op("55"); // clear
+        program.push(9).push(2).op("55").push(0).push(2).op("55"); // insert and clear
+        for (int key = 0; key < 4; key++) {
+            program.push(key).op("54").save(1);
+        }
+        program.op("5a").save(1);
+        assertInterpreterMatchesCompiled(program, 0);
+    }
+
+    @Test
+    public void testLogs() {
+        Program program = new Program();
+        program.push(0x1234).push(0x40).op("52");
+        for (int topics = 0; topics <= 4; topics++) {
+            program.log(topics, 0x40, 0x10 + topics);
+        }
+        program.log(2, 0x1000, 0x41); // expands the memory
+        program.op("5a").save(1);
+        assertInterpreterMatchesCompiled(program, 0);
+    }
+
+    @Test
+    public void testNestedCalls() {
+        Program program = new Program();
+        program.push(0x15).push(0x800).op("52"); // the input of the calls
+        program.call(CALL, callee, "00000000000000000000000000010000", 0).returned();
+        program.call(CALL, callee, "00000000000000000000000000010000", 1).returned();
+        program.call(CALL, callee, ALL_GAS, 0).returned();
+        program.call(CALL, nested, ALL_GAS, 0).returned();
+        program.call(CALLCODE, callee, "00000000000000000000000000010000", 0).returned();
+        program.call(DELEGATECALL, callee, ALL_GAS, 0).returned();
+        program.call(STATICCALL, callee, ALL_GAS, 0).returned(); // the callee writes storage
+        program.call(CALL, callee, "00000000000000000000000000000010", 0).returned(); // no gas
+        program.call(CALL, origin, ALL_GAS, 2).returned(); // no code
+        assertInterpreterMatchesCompiled(program, 0);
+    }
+
+    @Test
+    public void testCreate() {
+        Program program = new Program();
+        program.create("60106000f3", 0); // deploys 16 zero bytes
+        program.create("60106000f3", 3);
+        program.create("fe", 0); // init code aborts
+        program.create("", 0);
+        program.op("5a").save(1);
+        assertInterpreterMatchesCompiled(program, 0);
+    }
+
+    @Test
+    public void testStaticMode() {
+        Program allowed = new Program();
+        allowed.push(3).op("54").save(1);
+        allowed.call(CALL, callee, ALL_GAS, 0).returned(); // the callee writes storage
+        allowed.call(STATICCALL, nested, ALL_GAS, 0).returned();
+        allowed.op("5a").save(1);
+        assertInterpreterMatchesCompiled(allowed, FastVM.FLAG_STATIC);
+
+        Program[] aborts = {
+            new Program().push(1).push(0).op("55"), // SSTORE
+            new Program().log(0, 0, 0x10),
+            new Program().log(4, 0, 0x10),
+            new Program().create("60106000f3", 0),
+            new Program().call(CALL, callee, ALL_GAS, 1), // value transfer
+            new Program().pushAddress(origin).op("ff") // SELFDESTRUCT
+        };
+        for (Program program : aborts) {
+            Execution[] executions = assertInterpreterMatchesCompiled(program, FastVM.FLAG_STATIC);
+            assertNotEquals(ResultCode.SUCCESS, executions[0].result.getResultCode());
+        }
+    }
+
+    @Test
+    public void testFailures() {
+        Program[] programs = {
+            new Program().push(0x11).push(0).op("fd"), // REVERT
+            new Program().push(3).op("56"), // bad jump destination
+            new Program().op("fe"), // invalid instruction
+            new Program().op("01"), // stack underflow
+            new Program().op("5b").push(0).op("56") // runs out of energy
+        };
+        for (Program program : programs) {
+            assertInterpreterMatchesCompiled(program, 0);
+        }
+    }
+
+    /**
+     * Runs the program interpreted and then compiled. The code of the program and of the callees
+     * is new to the jit, so the first run interprets it all and the second compiles it.
+     *
+     * @return the interpreted and the compiled execution
+     */
+    private Execution[] assertInterpreterMatchesCompiled(Program program, int flags) {
+        String suffix = "00" + Hex.toHexString(RandomUtils.nextBytes(32));
+        byte[] code = Hex.decode(program.build() + suffix);
+
+        int interpreterThreshold = FastVM.getInterpreterThreshold();
+        int regionThreshold = FastVM.getRegionThreshold();
+        FastVM.setRegionThreshold(0);
+        try {
+            FastVM.setInterpreterThreshold(Integer.MAX_VALUE);
+            Execution interpreted = execute(code, suffix, flags);
+
+            FastVM.setInterpreterThreshold(0);
+            Execution compiled = execute(code, suffix, flags);
+
+            assertSameEffects(interpreted, compiled);
+            return new Execution[] {interpreted, compiled};
+        } finally {
+            FastVM.setInterpreterThreshold(interpreterThreshold);
+            FastVM.setRegionThreshold(regionThreshold);
+        }
+    }
+
+    private Execution execute(byte[] code, String suffix, int flags) {
+        DummyRepository repo = new DummyRepository();
+        repo.addBalance(address, BigInteger.valueOf(1000));
+        repo.addStorageRow(address, new DataWord(3), new DataWord(0x77));
+        repo.createAccount(callee);
+        repo.addContract(callee, Hex.decode(CALLEE_CODE + suffix));
+        repo.createAccount(nested);
+        repo.addContract(nested, Hex.decode(nestedCode() + suffix));
+
+        ExecutionContext ctx =
+                new ExecutionContext(
+                        txHash,
+                        address,
+                        origin,
+                        origin,
+                        DataWord.ONE,
+                        1_000_000,
+                        DataWord.ZERO,
+                        callData,
+                        0,
+                        ExecutionContext.CALL,
+                        flags,
+                        blockCoinbase,
+                        1,
+                        1_500_000_000,
+                        5_000_000,
+                        new DataWord(0x100000000L));
+        ExecutionResult result = new FastVM().run(code, ctx, repo);
+        return new Execution(result, ctx, repo);
+    }
+
+    /** Forwards its input to the callee and returns its output. */
+    private String nestedCode() {
+        return "366000600037"
+                + "601060003660006000"
+                + "7f"
+                + Hex.toHexString(callee.toBytes())
+                + "5af15060106000f3";
+    }
+
+    private void assertSameEffects(Execution interpreted, Execution compiled) {
+        ExecutionResult expected = interpreted.result;
+        ExecutionResult actual = compiled.result;
+        assertEquals(expected.getResultCode(), actual.getResultCode());
+        assertEquals(expected.getNrgLeft(), actual.getNrgLeft());
+        assertArrayEquals(expected.getOutput(), actual.getOutput());
+
+        for (Address account : new Address[] {address, callee, nested, origin}) {
+            assertEquals(interpreted.repo.getBalance(account), compiled.repo.getBalance(account));
+            for (int key = 0; key < 4; key++) {
+                assertEquals(
+                        interpreted.repo.getStorageValue(account, new DataWord(key)),
+                        compiled.repo.getStorageValue(account, new DataWord(key)));
+            }
+        }
+
+        List<Log> expectedLogs = interpreted.ctx.helper().getLogs();
+        List<Log> actualLogs = compiled.ctx.helper().getLogs();
+        assertEquals(expectedLogs.size(), actualLogs.size());
+        for (int i = 0; i < expectedLogs.size(); i++) {
+            assertEquals(expectedLogs.get(i).getAddress(), actualLogs.get(i).getAddress());
+            assertArrayEquals(expectedLogs.get(i).getData(), actualLogs.get(i).getData());
+            List<byte[]> expectedTopics = expectedLogs.get(i).getTopics();
+            List<byte[]> actualTopics = actualLogs.get(i).getTopics();
+            assertEquals(expectedTopics.size(), actualTopics.size());
+            for (int j = 0; j < expectedTopics.size(); j++) {
+                assertArrayEquals(expectedTopics.get(j), actualTopics.get(j));
+            }
+        }
+
+        List<AionInternalTx> expectedTxs = interpreted.ctx.helper().getInternalTransactions();
+        List<AionInternalTx> actualTxs = compiled.ctx.helper().getInternalTransactions();
+        assertEquals(expectedTxs.size(), actualTxs.size());
+        for (int i = 0; i < expectedTxs.size(); i++) {
+            assertEquals(expectedTxs.get(i).getTo(), actualTxs.get(i).getTo());
+            assertArrayEquals(expectedTxs.get(i).getValue(), actualTxs.get(i).getValue());
+            assertArrayEquals(expectedTxs.get(i).getData(), actualTxs.get(i).getData());
+            assertEquals(expectedTxs.get(i).getNote(), actualTxs.get(i).getNote());
+            assertEquals(expectedTxs.get(i).isRejected(), actualTxs.get(i).isRejected());
+        }
+    }
+
+    private static final class Execution {
+        final ExecutionResult result;
+        final ExecutionContext ctx;
+        final DummyRepository repo;
+
+        Execution(ExecutionResult result, ExecutionContext ctx, DummyRepository repo) {
+            this.result = result;
+            this.ctx = ctx;
+            this.repo = repo;
+        }
+    }
+
+    /**
+     * Assembles a program which saves the values it computes to memory, from offset zero, and
+     * returns them.
+     */
+    private static final class Program {
+        private final StringBuilder code = new StringBuilder();
+        private int saved;
+
+        Program op(String op) {
+            code.append(op);
+            return this;
+        }
+
+        /** Pushes a 16-byte word. */
+        Program push(String word) {
+            return op("6f" + word);
+        }
+
+        Program push(int value) {
+            return op(String.format("61%04x", value));
+        }
+
+        Program pushAddress(Address address) {
+            return op("7f" + Hex.toHexString(address.toBytes()));
+        }
+
+        /** Saves the given number of items on top of the stack. */
+        Program save(int items) {
+            for (int i = 0; i < items; i++) {
+                push(saved).op("52");
+                saved += 16;
+            }
+            return this;
+        }
+
+        /** Saves the given number of words of memory. */
+        Program load(int offset, int words) {
+            for (int i = 0; i < words; i++) {
+                push(offset + i * 16).op("51").save(1);
+            }
+            return this;
+        }
+
+        /** Logs the given memory range with distinct topics, each taking two items. */
+        Program log(int topics, int offset, int size) {
+            for (int i = 0; i < 2 * topics; i++) {
+                push(0x100 + i);
+            }
+            push(size).push(offset);
+            return op(String.format("%02x", 0xa0 + topics));
+        }
+
+        /**
+         * Calls the given account with the word at 0x800 as input. The output is written at
+         * 0x900.
+         */
+        Program call(String op, Address to, String gas, int value) {
+            push(0x10).push(0x900).push(0x10).push(0x800);
+            if (op.equals(CALL) || op.equals(CALLCODE)) {
+                push(value);
+            }
+            return pushAddress(to).push(gas).op(op);
+        }
+
+        /** Saves the success flag, the output, the size of the returned data and the energy. */
+        Program returned() {
+            save(1).load(0x900, 1);
+            return op("3d").save(1).op("5a").save(1);
+        }
+
+        /** Creates a contract from the given init code, saving its address and the energy. */
+        Program create(String init, int value) {
+            byte[] bytes = Hex.decode(init);
+            for (int i = 0; i < bytes.length; i++) {
+                push(bytes[i] & 0xff).push(0xa00 + i).op("53");
+            }
+            push(bytes.length).push(0xa00).push(value).op("f0");
+            return save(2).op("5a").save(1);
+        }
+
+        /** Returns the code, which returns the saved values. */
+        String build() {
+            push(saved).push(0).op("f3");
+            return code.toString();
+        }
+    }
+}
@@ -23,13 +23,16 @@
 package org.aion.fastvm;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicInteger;
 import org.aion.base.type.Address;
 import org.aion.base.util.ByteUtil;
 import org.aion.base.util.Hex;
@@ -38,7 +41,6 @@ import org.aion.mcf.vm.types.DataWord;
 import org.aion.vm.AbstractExecutionResult.ResultCode;
 import org.aion.vm.DummyRepository;
 import org.aion.vm.ExecutionContext;
-import org.aion.vm.ExecutionHelper;
 import org.aion.vm.ExecutionResult;
 import org.apache.commons.lang3.RandomUtils;
 import org.junit.Before;
@@ -60,13 +62,14 @@ public class MultiThreadTest {
     private DataWord nrgPrice;
     private long nrgLimit;
     private DataWord callValue;
-    private byte[] callData;
 
     private int depth = 0;
     private int kind = ExecutionContext.CREATE;
     private int flags = 0;
 
-    private ExecutionHelper helper;
+    private static final int NUM_CONTRACTS = 16;
+
+    private byte[][] contracts = new byte[NUM_CONTRACTS][];
 
     public MultiThreadTest() throws CloneNotSupportedException {}
 
@@ -75,62 +78,83 @@ public class MultiThreadTest {
         nrgPrice = DataWord.ONE;
         nrgLimit = 20000;
         callValue = DataWord.ZERO;
-        callData = new byte[0];
-        helper = new ExecutionHelper();
-    }
 
-    private static AtomicInteger count = new AtomicInteger(0);
+        for (int i = 0; i < NUM_CONTRACTS; i++) {
+            contracts[i] = generateContract(i);
+        }
+    }
 
     @Test
-    public void testRun() throws InterruptedException {
-        int numThread = 1;
+    public void testRun() throws Exception {
+        int numThread = Runtime.getRuntime().availableProcessors();
+        int repeat = 1000;
+
+        // warm up the code cache so that both runs measure execution only
+        runConcurrently(1, NUM_CONTRACTS);
+
+        long single = runConcurrently(1, repeat);
+        long multi = runConcurrently(numThread, repeat);
+
+        System.out.println("testRun(): 1 thread, " + single / repeat / 1000 + " μs/call");
+        System.out.println(
+                "testRun(): " + numThread + " threads, " + multi / repeat / 1000 + " μs/call");
+        System.out.println("testRun(): speedup " + (double) single / multi);
+
+        // loose on purpose, as timings are noisy on shared machines: this only catches a parallel
+        // run that contention makes markedly slower than running on a single thread
+        assertTrue("parallel run is slower than the serial one", multi < single * 3 / 2);
+    }
+
+    /**
+     * Executes the given number of calls on a pool of the given size, and returns the elapsed
+     * time in nanoseconds.
+     */
+    private long runConcurrently(int numThread, int repeat) throws Exception {
         ExecutorService es = Executors.newFixedThreadPool(numThread);
+        List<Future<ExecutionResult>> futures = new ArrayList<>();
 
         long t1 = System.nanoTime();
-        int repeat = 100;
         for (int i = 0; i < repeat; i++) {
-            es.submit(
-                    new Runnable() {
-                        @Override
-                        public void run() {
-                            byte[] code = generateContract(count.incrementAndGet());
-
-                            callData =
-                                    ByteUtil.merge(
-                                            Hex.decode("8256cff3"), new DataWord(64).getData());
-
-                            ExecutionContext ctx =
-                                    new ExecutionContext(
-                                            txHash,
-                                            address,
-                                            origin,
-                                            caller,
-                                            nrgPrice,
-                                            nrgLimit,
-                                            callValue,
-                                            callData,
-                                            depth,
-                                            kind,
-                                            flags,
-                                            blockCoinbase,
-                                            blockNumber,
-                                            blockTimestamp,
-                                            blockNrgLimit,
-                                            blockDifficulty);
-                            DummyRepository repo = new DummyRepository();
-
-                            FastVM vm = new FastVM();
-                            ExecutionResult result = vm.run(code, ctx, repo);
-                            assertEquals(ResultCode.SUCCESS, result.getCode());
-                        }
-                    });
+            byte[] code = contracts[i % NUM_CONTRACTS];
+            futures.add(es.submit(() -> execute(code)));
         }
+        for (Future<ExecutionResult> future : futures) {
+            ExecutionResult result = future.get(3, TimeUnit.MINUTES);
+            assertEquals(ResultCode.SUCCESS, result.getResultCode());
+        }
+        long t2 = System.nanoTime();
 
         es.shutdown();
-        es.awaitTermination(3, TimeUnit.MINUTES);
-        long t2 = System.nanoTime();
+        es.awaitTermination(1, TimeUnit.MINUTES);
+
+        return t2 - t1;
+    }
 
-        System.out.println("testRun(): " + (t2 - t1) / repeat / 1000 + " μs/call");
+    private ExecutionResult execute(byte[] code) {
+        byte[] callData = ByteUtil.merge(Hex.decode("8256cff3"), new DataWord(64).getData());
+
+        ExecutionContext ctx =
+                new ExecutionContext(
+                        txHash,
+                        address,
+                        origin,
+                        caller,
+                        nrgPrice,
+                        nrgLimit,
+                        callValue,
+                        callData,
+                        depth,
+                        kind,
+                        flags,
+                        blockCoinbase,
+                        blockNumber,
+                        blockTimestamp,
+                        blockNrgLimit,
+                        blockDifficulty);
+        DummyRepository repo = new DummyRepository();
+
+        FastVM vm = new FastVM();
+        return vm.run(code, ctx, repo);
     }
 
     private byte[] generateContract(int baseSum) {